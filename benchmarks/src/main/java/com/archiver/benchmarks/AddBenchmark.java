@@ -0,0 +1,75 @@
+package com.archiver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.archiver.models.SearchModel;
+
+import Utils.CsvGenerator;
+
+/**
+ * Cost of adding one record and waiting for it, as the command line adds one:
+ * {@link SearchModel#addNewContentAsync(String, Path)} saves the content,
+ * copies its attachments, journals the record and appends it. The model does
+ * not follow the records file, so no watcher refreshes it meanwhile. Compare
+ * with {@link AppendBenchmark}, which queues records back to back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class AddBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int rows;
+
+    private Path directory;
+    private Path recordsFile;
+    private SearchModel model;
+    private Path contentFolder;
+    private CsvGenerator generator;
+    private int added;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("archiver-add-benchmark");
+        recordsFile = Corpus.copyOf(rows, directory);
+        contentFolder = Files.createDirectories(directory.resolve("content"));
+        model = SearchModel.forCommandLine(recordsFile.toString());
+        generator = Corpus.generator();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        model.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void addNewContent() throws IOException {
+        // The content of an add is one field per line
+        String content = String.join("\n", generator.nextRecord().split(";"));
+        model.addNewContentAsync(content, contentFolder.resolve("content_" + added++ + ".txt")).join();
+    }
+}
@@ -0,0 +1,87 @@
+package com.archiver.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.archiver.models.BackupJournal;
+import com.archiver.models.RecordAppender;
+
+import Utils.CsvGenerator;
+
+/**
+ * Bulk ingestion through {@link RecordAppender}: a burst of records queued
+ * back to back and awaited together, reported per record, for each sync
+ * policy. Compare with {@link AddBenchmark}, which waits for each add before
+ * the next one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AppendBenchmark {
+    private static final int BURST = 100;
+
+    @Param({"EVERY_RECORD", "INTERVAL", "ON_CLOSE"})
+    public String syncPolicy;
+
+    private Path directory;
+    private RecordAppender appender;
+    private CsvGenerator generator;
+    private final String[] burst = new String[BURST];
+    private final CompletableFuture<?>[] pending = new CompletableFuture<?>[BURST];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("archiver-append-benchmark");
+        Path recordsFile = Corpus.copyOf(10_000, directory);
+        appender = new RecordAppender(recordsFile, new BackupJournal(recordsFile),
+            RecordAppender.SyncPolicy.valueOf(syncPolicy), 50);
+        generator = Corpus.generator();
+    }
+
+    @Setup(Level.Invocation)
+    public void nextBurst() throws IOException {
+        for (int i = 0; i < BURST; i++) {
+            burst[i] = System.lineSeparator() + generator.nextRecord();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        appender.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void appendBurst() {
+        for (int i = 0; i < BURST; i++) {
+            pending[i] = appender.append(burst[i]);
+        }
+        CompletableFuture.allOf(pending).join();
+    }
+}
@@ -0,0 +1,126 @@
+package com.archiver.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import Utils.CsvGenerator;
+
+/**
+ * Generated records files shared by the benchmarks, written with
+ * {@link CsvGenerator}.
+ *
+ * Corpora are written once per row count under target/corpora (or the
+ * directory in the archiver.benchmark.corpusDir system property) and reused by
+ * later runs. Generation is seeded, so every run measures the same data.
+ */
+final class Corpus {
+    static final long SEED = 42L;
+
+    // Only used for its vocabulary ranks, which depend on the seed alone
+    private static final CsvGenerator VOCABULARY = new CsvGenerator(SEED);
+
+    private Corpus() {
+    }
+
+    /**
+     * Path of the corpus with the given number of rows, generating it on first use.
+     */
+    static synchronized Path records(int rows) throws IOException {
+        Path directory = directory();
+        Path file = directory.resolve("records-" + rows + ".csv");
+        if (!Files.exists(file)) {
+            Path temp = directory.resolve("records-" + rows + ".csv.tmp");
+            generator().generate(temp, rows, 0);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    /**
+     * Folder holding the corpus with the given number of rows split in count
+     * shards of consecutive records, splitting it on first use.
+     */
+    static synchronized Path shards(int rows, int count) throws IOException {
+        Path folder = directory().resolve("shards-" + rows + "-" + count);
+        if (!Files.isDirectory(folder)) {
+            Path temp = directory().resolve("shards-" + rows + "-" + count + ".tmp");
+            Files.createDirectories(temp);
+            int rowsPerShard = (rows + count - 1) / count;
+            try (BufferedReader reader = Files.newBufferedReader(records(rows), StandardCharsets.UTF_8)) {
+                for (int shard = 1; shard <= count; shard++) {
+                    Path file = temp.resolve(String.format("records-%04d.csv", shard));
+                    try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                        String line;
+                        for (int row = 0; row < rowsPerShard && (line = reader.readLine()) != null; row++) {
+                            writer.write(line);
+                            writer.write("\r\n");
+                        }
+                    }
+                }
+            }
+            Files.move(temp, folder);
+        }
+        return folder;
+    }
+
+    /**
+     * Private copy of a corpus, for benchmarks that append to it.
+     */
+    static Path copyOf(int rows, Path directory) throws IOException {
+        Path copy = directory.resolve("records.csv");
+        Files.copy(records(rows), copy, StandardCopyOption.REPLACE_EXISTING);
+        return copy;
+    }
+
+    /**
+     * Generator producing the same records as the corpora, for benchmarks that
+     * need more of them.
+     */
+    static CsvGenerator generator() throws IOException {
+        return new CsvGenerator(SEED)
+            .setAttachmentsFolder(directory().resolve("attachments"))
+            .setLineSeparator("\r\n");
+    }
+
+    /**
+     * Search term for a query shape: how many words and how frequent they are
+     * in the corpus. "scan" terms contain the field delimiter, which the index
+     * cannot answer, so they measure the full scan.
+     */
+    static String query(String shape) {
+        int rare = VOCABULARY.getVocabularySize() / 2;
+        switch (shape) {
+            case "selective-1":
+                return word(rare);
+            case "common-1":
+                return word(60);
+            case "selective-3":
+                return word(70) + " " + word(500) + " " + word(rare / 2);
+            case "common-3":
+                return word(60) + " " + word(61) + " " + word(62);
+            case "mixed-5":
+                return word(60) + " " + word(64) + " " + word(100) + " " + word(1000) + " " + word(5000);
+            case "scan-2":
+                return word(61) + "; " + word(200);
+            default:
+                throw new IllegalArgumentException("Unknown query shape: " + shape);
+        }
+    }
+
+    // The first ranks are short Portuguese stop words that match inside most records
+    private static String word(int rank) {
+        return VOCABULARY.getWord(rank);
+    }
+
+    private static Path directory() throws IOException {
+        Path directory = Paths.get(System.getProperty("archiver.benchmark.corpusDir", "target/corpora"));
+        Files.createDirectories(directory);
+        return directory;
+    }
+}
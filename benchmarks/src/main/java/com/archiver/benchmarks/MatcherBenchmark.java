@@ -0,0 +1,63 @@
+package com.archiver.benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.archiver.models.SearchModel;
+
+/**
+ * Per-line cost of {@link SearchModel#containsSearchTerm(String)}, reported
+ * per line tested.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MatcherBenchmark {
+    private static final int LINES = 10_000;
+
+    @Param({"selective-1", "common-1", "selective-3", "common-3", "mixed-5", "scan-2"})
+    public String shape;
+
+    private SearchModel model;
+    private List<String> lines;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        model = new SearchModel(Corpus.records(LINES));
+        model.setSearchTerm(Corpus.query(shape));
+        try (Stream<String> stream = Files.lines(Corpus.records(LINES), StandardCharsets.UTF_8)) {
+            lines = stream.collect(Collectors.toList());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void containsSearchTerm(Blackhole blackhole) {
+        for (String line : lines) {
+            blackhole.consume(model.containsSearchTerm(line));
+        }
+    }
+}
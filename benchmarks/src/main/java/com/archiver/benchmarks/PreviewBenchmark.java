@@ -0,0 +1,53 @@
+package com.archiver.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.archiver.controllers.MainController;
+
+import Utils.CsvGenerator;
+
+/**
+ * {@link MainController#processTextForUrls(String)} on attachment-sized text
+ * with a link every few lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreviewBenchmark {
+    @Param({"1", "64", "1024", "16384"})
+    public int kilobytes;
+
+    private String text;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        CsvGenerator generator = Corpus.generator();
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < kilobytes * 1024) {
+            builder.append(generator.nextRecord().replace(';', ' ')).append('\n');
+        }
+        text = builder.toString();
+    }
+
+    @Benchmark
+    public String processTextForUrls() {
+        return MainController.processTextForUrls(text);
+    }
+}
@@ -0,0 +1,62 @@
+package com.archiver.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.archiver.models.SearchModel;
+
+/**
+ * End-to-end {@link SearchModel#searchRecords()} over generated corpora, for
+ * query shapes answered by the index and by the full scan. The result cache is
+ * off except for {@link #cachedSearch()}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// Without the result cache: every invocation repeats the same search, it would only measure cache hits
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-D" + SearchModel.SEARCH_CACHE_PROPERTY + "=0"})
+public class SearchBenchmark {
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int rows;
+
+    @Param({"selective-1", "common-1", "selective-3", "common-3", "mixed-5", "scan-2"})
+    public String shape;
+
+    private SearchModel model;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        model = new SearchModel(Corpus.records(rows));
+        model.setSearchTerm(Corpus.query(shape));
+    }
+
+    @Benchmark
+    public List<String> searchRecords() {
+        return model.searchRecords();
+    }
+
+    /**
+     * The same search answered from the result cache, which is on in this fork.
+     */
+    @Benchmark
+    @Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+    public List<String> cachedSearch() {
+        return model.searchRecords();
+    }
+}
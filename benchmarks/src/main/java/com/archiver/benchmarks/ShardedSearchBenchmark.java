@@ -0,0 +1,55 @@
+package com.archiver.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.archiver.models.SearchModel;
+
+/**
+ * {@link SearchModel#searchRecords()} over the same corpus split in more and
+ * more shards, searched at the same time and merged in shard order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+// Result cache off, repeated searches would be answered from it
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g", "-D" + SearchModel.SEARCH_CACHE_PROPERTY + "=0"})
+public class ShardedSearchBenchmark {
+    @Param({"1000000"})
+    public int rows;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"selective-1", "common-3", "scan-2"})
+    public String shape;
+
+    private SearchModel model;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        model = new SearchModel(Corpus.shards(rows, shards).toString());
+        model.setSearchTerm(Corpus.query(shape));
+    }
+
+    @Benchmark
+    public List<String> searchRecords() {
+        return model.searchRecords();
+    }
+}
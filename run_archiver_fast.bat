@@ -0,0 +1,7 @@
+@echo off
+rem Starts from the jar and class data sharing archive built by "mvn -Pcds package"
+set PATH=%PATH%;D:\mvn\apache_maven\apache-maven-3.5.4\bin
+set RECORDS_FILEPATH=D:\GIT_PROJS\archiver\records.csv
+d:
+cd D:\GIT_PROJS\archiver
+java -Xshare:auto -XX:SharedArchiveFile=target\archiver.jsa -cp target\archiver-1.0-SNAPSHOT.jar com.archiver.Launcher
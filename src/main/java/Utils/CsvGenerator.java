@@ -1,43 +1,378 @@
 package Utils;
 
-import java.io.FileWriter;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Locale;
 import java.util.Random;
+import java.util.Set;
 
+/**
+ * Generates records files for load testing, in the format SearchModel reads:
+ * one record per line, fields separated (and terminated) by ";".
+ *
+ * Words are drawn from a Zipf distribution over a vocabulary that starts with
+ * common Portuguese words (accents included) followed by made-up ones, so a
+ * few words are in almost every record and most are rare. Some fields are
+ * URLs and some are paths of .txt attachments, which are written to the
+ * attachments folder the first time a record points to them.
+ *
+ * Everything comes from the seed: the same seed and options always produce
+ * the same records and attachments.
+ *
+ * Usage: CsvGenerator [--output file [--force]] [--rows n | --size bytes[K|M|G]] [--seed n]
+ *                     [--attachments folder | --no-attachments] [--attachment-files n] [--crlf]
+ *
+ * The output defaults to target/records.csv, a scratch file; an existing
+ * output is only replaced with --force, it may well be someone's records.
+ */
 public class CsvGenerator {
-    private static final String[] RANDOM_WORDS = {
-        "apple", "banana", "orange", "grape", "mango",
-        "car", "bike", "train", "plane", "boat",
-        "book", "pen", "pencil", "paper", "desk"
+    private static final String DELIMITER = ";";
+    private static final String DEFAULT_OUTPUT = "target/records.csv";
+    private static final int DEFAULT_VOCABULARY_SIZE = 20_000;
+    private static final int DEFAULT_ATTACHMENT_FILES = 1000;
+    private static final int MIN_ATTACHMENT_SIZE = 512;
+    private static final int MAX_ATTACHMENT_SIZE = 1 << 20;
+
+    private static final String[] COMMON_WORDS = {
+        "de", "a", "o", "que", "e", "do", "da", "em", "um", "para", "com", "não", "uma", "os", "no",
+        "se", "na", "por", "mais", "as", "dos", "como", "mas", "ao", "ele", "das", "à", "seu", "sua",
+        "ou", "quando", "muito", "nos", "já", "também", "só", "pelo", "pela", "até", "isso", "entre",
+        "depois", "sem", "mesmo", "aos", "seus", "quem", "nas", "esse", "está", "você", "essa", "num",
+        "relatório", "reunião", "contrato", "pasta", "abrir", "arquivo", "cliente", "conta", "banco",
+        "itaú", "pagamento", "orçamento", "projeto", "documento", "ação", "informação", "serviço",
+        "operação", "gestão", "análise", "código", "versão", "número", "endereço", "página", "série",
+        "médio", "crédito", "débito", "transação", "previsão", "comissão", "decisão", "importação",
+        "exportação", "configuração", "migração", "atualização", "instalação", "manutenção", "segurança",
+        "política", "econômico", "técnico", "jurídico", "público", "prático", "histórico", "último",
+        "próximo", "possível", "responsável", "disponível", "função", "reclamação", "solicitação",
+        "planilha", "senha", "usuário", "acesso", "sistema", "servidor", "rede", "backup", "log",
+        "erro", "falha", "teste", "produção", "homologação", "desenvolvimento", "equipe", "diretoria",
+        "são", "paulo", "brasília", "janeiro", "fevereiro", "março", "abril", "maio", "junho", "julho",
+        "agosto", "setembro", "outubro", "novembro", "dezembro", "segunda", "terça", "quarta", "sábado"
     };
 
-    public static void main(String[] args) {
-        String csvFile = "src/main/resources/records.csv";
-        Random random = new Random();
-
-        try (FileWriter writer = new FileWriter(csvFile, true)) {
-            for (int i = 0; i < 100; i++) {
-                // Generate a random line with "hugo" and 3 random words
-                StringBuilder line = new StringBuilder();
-                line.append("hugo,");
-                
-                // Add 3 random words
-                for (int j = 0; j < 3; j++) {
-                    line.append(RANDOM_WORDS[random.nextInt(RANDOM_WORDS.length)]);
-                    if (j < 2) {
-                        line.append(",");
+    private static final String[] SYLLABLES = {
+        "ba", "ca", "da", "fa", "ga", "la", "ma", "na", "pa", "ra", "sa", "ta", "va", "xa", "za",
+        "be", "ce", "de", "fe", "le", "me", "ne", "pe", "re", "se", "te", "ve",
+        "bi", "ci", "di", "fi", "li", "mi", "ni", "pi", "ri", "si", "ti", "vi",
+        "bo", "co", "do", "fo", "go", "lo", "mo", "no", "po", "ro", "so", "to", "vo",
+        "bu", "cu", "du", "lu", "mu", "nu", "pu", "ru", "tu",
+        "ção", "ções", "são", "ões", "ães", "lha", "nho", "tá", "lé", "rí", "có", "pú", "çu", "ê", "ô"
+    };
+
+    private final long seed;
+    private final Random random;
+    private final String[] vocabulary;
+    // Cumulative Zipf weights of the vocabulary, by rank
+    private final double[] cumulative;
+
+    private Path attachmentsFolder;
+    private int attachmentFiles = DEFAULT_ATTACHMENT_FILES;
+    private String lineSeparator = "\n";
+    private final Set<Integer> writtenAttachments = new LinkedHashSet<>();
+
+    public CsvGenerator(long seed) {
+        this(seed, DEFAULT_VOCABULARY_SIZE);
+    }
+
+    public CsvGenerator(long seed, int vocabularySize) {
+        this.seed = seed;
+        this.random = new Random(seed);
+        this.vocabulary = buildVocabulary(seed, Math.max(vocabularySize, COMMON_WORDS.length));
+        this.cumulative = new double[vocabulary.length];
+        double total = 0;
+        for (int rank = 0; rank < vocabulary.length; rank++) {
+            total += 1.0 / (rank + 1);
+            cumulative[rank] = total;
+        }
+    }
+
+    /**
+     * Folder the attachment files are written to, or null for records without
+     * attachment fields.
+     */
+    public CsvGenerator setAttachmentsFolder(Path attachmentsFolder) {
+        this.attachmentsFolder = attachmentsFolder;
+        return this;
+    }
+
+    /**
+     * How many distinct attachment files records point to. Records share them,
+     * so large corpora do not create millions of files.
+     */
+    public CsvGenerator setAttachmentFiles(int attachmentFiles) {
+        this.attachmentFiles = Math.max(1, attachmentFiles);
+        return this;
+    }
+
+    public CsvGenerator setLineSeparator(String lineSeparator) {
+        this.lineSeparator = lineSeparator;
+        return this;
+    }
+
+    public int getVocabularySize() {
+        return vocabulary.length;
+    }
+
+    /**
+     * Vocabulary word of the given frequency rank, 0 being the most common.
+     */
+    public String getWord(int rank) {
+        return vocabulary[rank];
+    }
+
+    /**
+     * Writes records to the file until either limit is reached, replacing it.
+     *
+     * @param maxRows stop after this many records, or 0 for no limit
+     * @param maxBytes stop once the file is at least this large, or 0 for no limit
+     * @return the number of records written
+     */
+    public long generate(Path output, long maxRows, long maxBytes) throws IOException {
+        if (maxRows <= 0 && maxBytes <= 0) {
+            throw new IllegalArgumentException("A row count or a size is required");
+        }
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        long rows = 0;
+        long bytes = 0;
+        try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            while ((maxRows <= 0 || rows < maxRows) && (maxBytes <= 0 || bytes < maxBytes)) {
+                String line = nextRecord() + lineSeparator;
+                writer.write(line);
+                bytes += utf8Length(line);
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Next record line, without the line separator.
+     */
+    public String nextRecord() throws IOException {
+        StringBuilder line = new StringBuilder(128);
+        int fields = 1 + random.nextInt(5);
+        for (int i = 0; i < fields; i++) {
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                line.append("https://www.").append(nextWord()).append(".com.br/")
+                    .append(nextWord()).append('/').append(random.nextInt(100_000));
+            } else if (kind == 1 && attachmentsFolder != null) {
+                line.append(attachment(random.nextInt(attachmentFiles)));
+            } else {
+                appendText(line, 2 + random.nextInt(8));
+            }
+            line.append(DELIMITER);
+        }
+        return line.toString();
+    }
+
+    // Zipf draw: rank r is picked with probability proportional to 1 / (r + 1)
+    private String nextWord() {
+        return vocabulary[rankOf(random)];
+    }
+
+    private int rankOf(Random source) {
+        double target = source.nextDouble() * cumulative[cumulative.length - 1];
+        int rank = Arrays.binarySearch(cumulative, target);
+        return rank >= 0 ? rank : Math.min(-rank - 1, cumulative.length - 1);
+    }
+
+    private void appendText(StringBuilder line, int words) {
+        for (int w = 0; w < words; w++) {
+            String word = nextWord();
+            if (w > 0) {
+                line.append(' ');
+            } else if (random.nextInt(3) == 0) {
+                // Some fields start capitalized, as typed text does
+                word = word.substring(0, 1).toUpperCase(Locale.ROOT) + word.substring(1);
+            }
+            line.append(word);
+        }
+    }
+
+    /**
+     * Absolute path of attachment number n, writing the file the first time.
+     * Its name and content depend only on the seed and n.
+     */
+    private String attachment(int n) throws IOException {
+        Random source = new Random(seed * 31 + n);
+        StringBuilder name = new StringBuilder();
+        for (int w = 0; w < 3; w++) {
+            // ASCII only, like the names SearchModel suggests for saved content
+            String word = vocabulary[rankOf(source)].replaceAll("[^a-zA-Z0-9]", "");
+            if (!word.isEmpty()) {
+                name.append(word).append('_');
+            }
+        }
+        name.append(n).append(".txt");
+        Path file = attachmentsFolder.toAbsolutePath().resolve(name.toString());
+
+        if (writtenAttachments.add(n)) {
+            Files.createDirectories(file.getParent());
+            // Log-uniform size, so most attachments are small and a few are large
+            double scale = Math.log((double) MAX_ATTACHMENT_SIZE / MIN_ATTACHMENT_SIZE);
+            long size = (long) (MIN_ATTACHMENT_SIZE * Math.exp(source.nextDouble() * scale));
+            try (BufferedWriter writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                long written = 0;
+                while (written < size) {
+                    StringBuilder paragraph = new StringBuilder();
+                    int words = 10 + source.nextInt(60);
+                    for (int w = 0; w < words; w++) {
+                        if (w > 0) {
+                            paragraph.append(' ');
+                        }
+                        if (source.nextInt(40) == 0) {
+                            paragraph.append("https://www.").append(vocabulary[rankOf(source)]).append(".com.br/")
+                                .append(source.nextInt(100_000));
+                        } else {
+                            paragraph.append(vocabulary[rankOf(source)]);
+                        }
                     }
+                    paragraph.append(".\n\n");
+                    writer.write(paragraph.toString());
+                    written += utf8Length(paragraph);
+                }
+            }
+        }
+        return file.toString();
+    }
+
+    private static String[] buildVocabulary(long seed, int size) {
+        Random source = new Random(seed);
+        Set<String> words = new LinkedHashSet<>(Arrays.asList(COMMON_WORDS));
+        while (words.size() < size) {
+            int syllables = 2 + source.nextInt(3);
+            StringBuilder word = new StringBuilder();
+            for (int s = 0; s < syllables; s++) {
+                word.append(SYLLABLES[source.nextInt(SYLLABLES.length)]);
+            }
+            words.add(word.toString());
+        }
+        return words.toArray(new String[0]);
+    }
+
+    private static long utf8Length(CharSequence text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static long parseSize(String value) {
+        String number = value.trim().toUpperCase(Locale.ROOT);
+        long unit = 1;
+        if (number.endsWith("K")) {
+            unit = 1L << 10;
+        } else if (number.endsWith("M")) {
+            unit = 1L << 20;
+        } else if (number.endsWith("G")) {
+            unit = 1L << 30;
+        }
+        if (unit > 1) {
+            number = number.substring(0, number.length() - 1);
+        }
+        return Long.parseLong(number) * unit;
+    }
+
+    public static void main(String[] args) {
+        String csvFile = DEFAULT_OUTPUT;
+        boolean force = false;
+        long rows = 0;
+        long bytes = 0;
+        long seed = 42;
+        String attachments = null;
+        boolean withAttachments = true;
+        int attachmentFiles = DEFAULT_ATTACHMENT_FILES;
+        boolean crlf = false;
+
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--output":
+                        csvFile = args[++i];
+                        break;
+                    case "--force":
+                        force = true;
+                        break;
+                    case "--rows":
+                        rows = Long.parseLong(args[++i]);
+                        break;
+                    case "--size":
+                        bytes = parseSize(args[++i]);
+                        break;
+                    case "--seed":
+                        seed = Long.parseLong(args[++i]);
+                        break;
+                    case "--attachments":
+                        attachments = args[++i];
+                        break;
+                    case "--no-attachments":
+                        withAttachments = false;
+                        break;
+                    case "--attachment-files":
+                        attachmentFiles = Integer.parseInt(args[++i]);
+                        break;
+                    case "--crlf":
+                        crlf = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + args[i]);
                 }
-                
-                // Add newline
-                line.append("\n");
-                
-                // Write the line to the file
-                writer.write(line.toString());
-            }
-            System.out.println("Successfully added 100 new lines to records.csv");
+            }
+        } catch (RuntimeException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            System.err.println("Usage: CsvGenerator [--output file [--force]] [--rows n | --size bytes[K|M|G]] [--seed n]"
+                + " [--attachments folder | --no-attachments] [--attachment-files n] [--crlf]");
+            System.exit(1);
+        }
+        if (rows <= 0 && bytes <= 0) {
+            rows = 100;
+        }
+
+        Path output = Paths.get(csvFile);
+        if (Files.exists(output) && !force) {
+            System.err.println(output + " already exists, use --force to replace it");
+            System.exit(1);
+        }
+        CsvGenerator generator = new CsvGenerator(seed)
+            .setAttachmentFiles(attachmentFiles)
+            .setLineSeparator(crlf ? "\r\n" : "\n");
+        if (withAttachments) {
+            generator.setAttachmentsFolder(attachments != null
+                ? Paths.get(attachments)
+                : output.toAbsolutePath().resolveSibling("attachments"));
+        }
+
+        try {
+            long start = System.nanoTime();
+            long written = generator.generate(output, rows, bytes);
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            System.out.println("Successfully wrote " + written + " records (" + Files.size(output) + " bytes) to "
+                + output + " in " + millis + " ms");
         } catch (IOException e) {
             System.err.println("Error writing to CSV file: " + e.getMessage());
         }
     }
-} 
\ No newline at end of file
+}
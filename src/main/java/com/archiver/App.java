@@ -5,15 +5,31 @@ import com.archiver.models.SearchModel;
 import com.archiver.views.MainView;
 
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.scene.control.Alert;
 import javafx.stage.Stage;
 
 public class App extends Application {
+    static final String EXIT_AFTER_STARTUP = "archiver.exitAfterStartup";
+    private SearchModel model;
 
     @Override
     public void start(Stage primaryStage) {
         try {
-            // Initialize MVC components
-            SearchModel model = new SearchModel();
+            // Initialize MVC components; the records load behind the window instead of before it
+            model = new SearchModel(true);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            // No records to work on (RECORDS_FILEPATH unset or unusable), nothing to show but the reason
+            System.err.println("Error: " + e.getMessage());
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setTitle("Error");
+            alert.setHeaderText("Records file unavailable");
+            alert.setContentText(e.getMessage());
+            alert.showAndWait();
+            Platform.exit();
+            return;
+        }
+        try {
             MainController controller = new MainController(model);
             MainView mainView = new MainView(controller);
             
@@ -25,9 +41,25 @@ public class App extends Application {
         } catch (Exception e) {
             e.printStackTrace();
         }
+        // Training run of the fast startup build (see the cds profile): quit once the window is up
+        if (Boolean.getBoolean(EXIT_AFTER_STARTUP)) {
+            Platform.runLater(Platform::exit);
+        }
+    }
+
+    @Override
+    public void stop() {
+        // Make sure queued adds reach the records file before exiting
+        if (model != null) {
+            model.close();
+        }
     }
 
-    public static void main(String[] args) {    	
+    public static void main(String[] args) {
+        // Commands run headless, JavaFX is never started for them
+        if (CommandLine.isCommand(args)) {
+            System.exit(CommandLine.run(args, System.in));
+        }
     	System.out.println( "Running in: "  + SearchModel.getOperatingSystem() );    	
         launch(args);
     }
@@ -0,0 +1,399 @@
+package com.archiver;
+
+import java.io.BufferedReader;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import com.archiver.models.BackupJournal;
+import com.archiver.models.ColumnarRecords;
+import com.archiver.models.RecordShards;
+import com.archiver.models.SearchModel;
+
+/**
+ * Headless entry point: runs searches and adds through {@link SearchModel}
+ * directly and prints to stdout, without starting JavaFX or needing a display.
+ *
+ * <pre>
+ * search [options] term...     records matching every word of the term
+ * search [options] --stdin     one search per line of stdin
+ * add [options] contentFile...  adds the content of each file ("-" for stdin)
+ * convert input output         text records file to columnar (output ends in
+ *                              ".arcs") or columnar back to text
+ * restore version output       the records file as it was at that backup
+ *                              version, written to a new output file (the
+ *                              active shard; --records a shard file for others)
+ *
+ * --records file   records file, shards folder or glob instead of RECORDS_FILEPATH
+ * --json           JSON output: one object per search or add, one per line
+ * --limit n        stop each search after n results
+ * --top k          only the k best matches (BM25), best first
+ * --fuzzy          also match words a few typos away from the search words
+ * --save-as file   where add saves the content, replacing that file (default:
+ *                  suggested name, with a "_N" suffix if it is taken)
+ * --save-dir dir   folder for the suggested name (default: next to the records)
+ * </pre>
+ *
+ * Run it as the main class (java -cp ... com.archiver.CommandLine search foo).
+ * App forwards these commands too, but a class path launch of App is refused
+ * by the java launcher when JavaFX is not on the module path.
+ *
+ * Exit status is 0 on success, 1 when a search found nothing and 2 on errors,
+ * so scripts can test it like grep's.
+ */
+public class CommandLine {
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_NO_MATCH = 1;
+    private static final int EXIT_ERROR = 2;
+
+    private String command;
+    private final List<String> arguments = new ArrayList<>();
+    private String records;
+    private boolean json;
+    private boolean fromStdin;
+    private int limit = Integer.MAX_VALUE;
+    private int top;
+    private boolean fuzzy;
+    private Path saveAs;
+    private Path saveDir;
+
+    private PrintStream out;
+
+    /**
+     * Whether the arguments ask for a command instead of the window.
+     */
+    public static boolean isCommand(String[] args) {
+        return args.length > 0 && (args[0].equals("search") || args[0].equals("add")
+            || args[0].equals("convert") || args[0].equals("restore"));
+    }
+
+    public static void main(String[] args) {
+        System.exit(run(args, System.in));
+    }
+
+    /**
+     * Runs the command and returns the exit status.
+     */
+    public static int run(String[] args, InputStream in) {
+        CommandLine commandLine = new CommandLine();
+        try {
+            commandLine.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            printUsage();
+            return EXIT_ERROR;
+        }
+        // Buffered so large result sets are not written line by line
+        commandLine.out = new PrintStream(
+            new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+        try {
+            if (commandLine.command.equals("search")) {
+                return commandLine.search(in);
+            } else if (commandLine.command.equals("convert")) {
+                return commandLine.convert();
+            } else if (commandLine.command.equals("restore")) {
+                return commandLine.restore();
+            } else {
+                return commandLine.add(in);
+            }
+        } catch (Exception e) {
+            // Including a records setting the model rejects and a records file a search could not read,
+            // never mistaken for a search with no match
+            System.err.println("Error: " + e.getMessage());
+            return EXIT_ERROR;
+        } finally {
+            commandLine.out.flush();
+        }
+    }
+
+    private void parse(String[] args) {
+        if (!isCommand(args)) {
+            throw new IllegalArgumentException("Unknown command");
+        }
+        command = args[0];
+        for (int i = 1; i < args.length; i++) {
+            switch (args[i]) {
+                case "--records":
+                    records = value(args, ++i);
+                    break;
+                case "--json":
+                    json = true;
+                    break;
+                case "--stdin":
+                    fromStdin = true;
+                    break;
+                case "--limit":
+                    limit = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--fuzzy":
+                    fuzzy = true;
+                    break;
+                case "--top":
+                    top = Integer.parseInt(value(args, ++i));
+                    break;
+                case "--save-as":
+                    saveAs = Paths.get(value(args, ++i));
+                    break;
+                case "--save-dir":
+                    saveDir = Paths.get(value(args, ++i));
+                    break;
+                default:
+                    arguments.add(args[i]);
+            }
+        }
+        if (command.equals("search") && !fromStdin && arguments.isEmpty()) {
+            throw new IllegalArgumentException("search needs a term or --stdin");
+        }
+        if (command.equals("add") && arguments.isEmpty()) {
+            throw new IllegalArgumentException("add needs a content file");
+        }
+        if (command.equals("add") && saveAs != null && arguments.size() > 1) {
+            throw new IllegalArgumentException("--save-as only works with a single content file");
+        }
+        if (command.equals("convert") && arguments.size() != 2) {
+            throw new IllegalArgumentException("convert needs an input and an output file");
+        }
+        if (command.equals("restore") && arguments.size() != 2) {
+            throw new IllegalArgumentException("restore needs a backup version and an output file");
+        }
+    }
+
+    private static String value(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    private SearchModel openModel() {
+        // Loads the records and their saved index only, nothing follows the files for a single run
+        return SearchModel.forCommandLine(records);
+    }
+
+    private int search(InputStream in) throws IOException {
+        SearchModel model = openModel();
+        try {
+            if (!fromStdin) {
+                return search(model, String.join(" ", arguments), false) > 0 ? EXIT_OK : EXIT_NO_MATCH;
+            }
+
+            // Many searches share one loaded model; results are flushed after each one
+            long total = 0;
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String query;
+            while ((query = reader.readLine()) != null) {
+                if (query.trim().isEmpty()) {
+                    continue;
+                }
+                total += search(model, query.trim(), true);
+                out.flush();
+            }
+            return total > 0 ? EXIT_OK : EXIT_NO_MATCH;
+        } finally {
+            model.close();
+        }
+    }
+
+    private int search(SearchModel model, String query, boolean labelled) {
+        long start = System.nanoTime();
+        model.setSearchTerm(query);
+        model.setFuzzy(fuzzy);
+        List<String> results = new ArrayList<>();
+        if (top > 0) {
+            // Ranking needs every match, the limit only trims the best ones
+            model.searchRecordsRanked(top, result -> {
+                if (results.size() < limit) {
+                    results.add(result);
+                }
+            }, () -> false);
+        } else {
+            model.searchRecords(result -> {
+                if (results.size() < limit) {
+                    results.add(result);
+                }
+            }, () -> results.size() >= limit);
+        }
+        long micros = (System.nanoTime() - start) / 1000;
+
+        if (json) {
+            StringBuilder object = new StringBuilder();
+            object.append("{\"query\":").append(quote(query))
+                  .append(",\"count\":").append(results.size())
+                  .append(",\"micros\":").append(micros)
+                  .append(",\"results\":[");
+            for (int i = 0; i < results.size(); i++) {
+                if (i > 0) {
+                    object.append(',');
+                }
+                object.append(quote(results.get(i)));
+            }
+            object.append("]}");
+            out.println(object);
+        } else {
+            // With several searches each result line says which search found it
+            for (String result : results) {
+                out.println(labelled ? query + "\t" + result : result);
+            }
+        }
+        return results.size();
+    }
+
+    /**
+     * The suggested name, with "_1", "_2"... added until it names neither an
+     * existing file nor one already used by this add.
+     */
+    private static Path uniqueDestination(Path folder, String suggestedName, Set<Path> usedNames) {
+        int dot = suggestedName.lastIndexOf('.');
+        String nameWithoutExt = dot > 0 ? suggestedName.substring(0, dot) : suggestedName;
+        String extension = dot > 0 ? suggestedName.substring(dot) : "";
+        Path destination = folder.resolve(suggestedName);
+        int counter = 1;
+        while (Files.exists(destination) || usedNames.contains(destination.toAbsolutePath())) {
+            destination = folder.resolve(nameWithoutExt + "_" + counter + extension);
+            counter++;
+        }
+        return destination;
+    }
+
+    private int add(InputStream in) throws IOException {
+        SearchModel model = openModel();
+        try {
+            // Every content file is queued first so their records are committed together
+            List<Path> destinations = new ArrayList<>();
+            Set<Path> usedNames = new HashSet<>();
+            List<CompletableFuture<Void>> appends = new ArrayList<>();
+            for (String source : arguments) {
+                String content = source.equals("-")
+                    ? new String(in.readAllBytes(), StandardCharsets.UTF_8)
+                    : Files.readString(Paths.get(source), StandardCharsets.UTF_8);
+                if (content.trim().isEmpty()) {
+                    System.err.println("Skipping " + source + ", it is empty");
+                    continue;
+                }
+                Path destination = saveAs;
+                if (destination == null) {
+                    Path folder = saveDir != null ? saveDir : model.getRecordsPath().toAbsolutePath().getParent();
+                    destination = uniqueDestination(folder, model.suggestFilename(content), usedNames);
+                }
+                usedNames.add(destination.toAbsolutePath());
+                destinations.add(destination.toAbsolutePath());
+                // Only a file named explicitly may be replaced, a suggested name never overwrites anything
+                appends.add(model.addNewContentAsync(content, destination, saveAs != null));
+            }
+            CompletableFuture.allOf(appends.toArray(new CompletableFuture<?>[0])).join();
+
+            for (Path destination : destinations) {
+                if (json) {
+                    out.println("{\"added\":" + quote(destination.toString()) + "}");
+                } else {
+                    out.println("Added " + destination);
+                }
+            }
+            return destinations.isEmpty() ? EXIT_ERROR : EXIT_OK;
+        } finally {
+            model.close();
+        }
+    }
+
+    private int convert() throws IOException {
+        Path input = Paths.get(arguments.get(0));
+        Path output = Paths.get(arguments.get(1));
+        if (ColumnarRecords.isColumnar(input) == ColumnarRecords.isColumnar(output)) {
+            throw new IllegalArgumentException("exactly one of the files must end in " + ColumnarRecords.EXTENSION);
+        }
+        if (Files.exists(output)) {
+            throw new IllegalArgumentException(output + " already exists");
+        }
+        long records = ColumnarRecords.isColumnar(input)
+            ? ColumnarRecords.toText(input, output)
+            : ColumnarRecords.fromText(input, output);
+        if (json) {
+            out.println("{\"converted\":" + records + ",\"output\":" + quote(output.toString()) + "}");
+        } else {
+            out.println("Converted " + records + " records to " + output);
+        }
+        return EXIT_OK;
+    }
+
+    private int restore() throws IOException {
+        long version;
+        try {
+            version = Long.parseLong(arguments.get(0));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("not a backup version: " + arguments.get(0));
+        }
+        Path output = Paths.get(arguments.get(1));
+        if (Files.exists(output)) {
+            throw new IllegalArgumentException(output + " already exists");
+        }
+        // Only the journal is needed, the records are not loaded
+        String setting = records != null ? records : System.getenv("RECORDS_FILEPATH");
+        if (setting == null || setting.trim().isEmpty()) {
+            throw new IllegalArgumentException("RECORDS_FILEPATH environment variable is not set");
+        }
+        Path recordsFile = RecordShards.resolve(setting).getActive();
+        BackupJournal journal = new BackupJournal(recordsFile);
+        if (version > journal.getLatestSequence()) {
+            throw new IllegalArgumentException("no backup version " + version + " of " + recordsFile
+                + ", the latest is " + journal.getLatestSequence());
+        }
+        journal.restore(version, output);
+        if (json) {
+            out.println("{\"restored\":" + version + ",\"output\":" + quote(output.toString()) + "}");
+        } else {
+            out.println("Restored version " + version + " of " + recordsFile + " to " + output);
+        }
+        return EXIT_OK;
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"':
+                    quoted.append("\\\"");
+                    break;
+                case '\\':
+                    quoted.append("\\\\");
+                    break;
+                case '\n':
+                    quoted.append("\\n");
+                    break;
+                case '\r':
+                    quoted.append("\\r");
+                    break;
+                case '\t':
+                    quoted.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: search [--records file] [--json] [--limit n] [--top k] [--fuzzy] (term... | --stdin)");
+        System.err.println("       add [--records file] [--json] [--save-as file | --save-dir dir] (contentFile... | -)");
+        System.err.println("       convert [--json] input output");
+        System.err.println("       restore [--records file] [--json] version output");
+    }
+}
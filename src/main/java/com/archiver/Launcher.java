@@ -0,0 +1,12 @@
+package com.archiver;
+
+/**
+ * Entry point of the packaged jar. The java launcher refuses to start an
+ * Application subclass when JavaFX is on the class path instead of the module
+ * path, as it is in the shaded jar, so this one only hands over to App.
+ */
+public class Launcher {
+    public static void main(String[] args) {
+        App.main(args);
+    }
+}
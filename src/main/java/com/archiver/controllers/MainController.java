@@ -1,21 +1,77 @@
 package com.archiver.controllers;
 
+import com.archiver.models.FieldCatalog;
+import com.archiver.models.FilePreview;
+import com.archiver.models.FoundRecords;
 import com.archiver.models.SearchModel;
+import com.archiver.utils.LruCache;
+import com.archiver.utils.Metrics;
+import com.archiver.utils.OperationTimer;
 import com.archiver.views.MainView;
 
+import javafx.application.Platform;
+import javafx.concurrent.Task;
 import javafx.scene.control.Alert;
-import java.util.List;
-import java.nio.file.Files;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class MainController {
     private SearchModel model;
     private MainView view;
+    private final FieldCatalog fieldCatalog;
     private static final Pattern URL_PATTERN = Pattern.compile("\\b(https?://\\S+)\\b");
+    // A batch of hits goes to the view once it is this big or about a frame passed since the last one
+    private static final int RESULT_BATCH_SIZE = 200;
+    private static final long RESULT_BATCH_NANOS = 16_000_000L;
+
+    private final ExecutorService searchExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "search-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private SearchTask currentSearch;
+    // Term and options of the last search started, so a live search does not repeat it
+    private String lastSearchKey;
+    private final ExecutorService addExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "add-worker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private AddTask currentAdd;
+    // Results kept by a ranked search, see SEARCH_TOP_K
+    private static final int RANKED_RESULTS = (int) sizeFromEnv("SEARCH_TOP_K", 200, 1);
+    // Hits of the current search, kept unformatted; the view receives them a page at a time as the
+    // user scrolls, and only those pages are formatted
+    private static final int RESULT_PAGE_SIZE = 500;
+    private final FoundRecords searchHits = new FoundRecords();
+    private int shownHits;
+    private boolean moreResultsRequested;
+
+    // Text files are previewed a piece at a time: the first piece with the selection,
+    // the next ones as the user scrolls down to the end of what is shown
+    private static final long PREVIEW_CHUNK_BYTES = sizeFromEnv("PREVIEW_CHUNK_KB", 64, 1024);
+    // Rendered pieces, kept within PREVIEW_CACHE_MB (a char is two bytes on the heap)
+    private final LruCache<String, PreviewChunk> previewCache = new LruCache<>(
+        sizeFromEnv("PREVIEW_CACHE_MB", 32, 1024 * 1024), chunk -> 2L * chunk.html.length() + 64);
+    private final ExecutorService previewExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "preview-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Files of the shown selection with more to show, by the id of their element in the preview
+    private final Map<String, PreviewStream> previewStreams = new HashMap<>();
+    // Changes with every selection, so pieces read for the previous one are dropped
+    private int previewGeneration;
 
     // Add constants for tooltips to avoid string concatenation
     private static final String TOOLTIP_FILE = "Abrir o arquivo";
@@ -24,6 +80,8 @@ public class MainController {
 
     public MainController(SearchModel model) {
         this.model = model;
+        // Start classifying record fields now, so selections find them checked
+        this.fieldCatalog = model.getFieldCatalog();
     }
 
     public void setView(MainView view) {
@@ -31,27 +89,172 @@ public class MainController {
     }
 
     public void handleSearch() {
-        // Clear previous results
-        view.clearResults();
-        
         String searchTerm = view.getSearchText().trim();
         
         // Validate search term
         if (searchTerm == null || searchTerm.isEmpty()) {
+            cancelCurrentSearch();
+            clearSearchHits();
+            view.clearResults();
             showAlert("Error", "Search term is empty", "Please enter a search term.");
             return;
         }
+        startSearch(searchTerm, true);
+    }
 
-        // Perform search
+    /**
+     * Called by the view once the user paused typing or changed a search
+     * option: searches what is typed so far, without any dialog. A term that
+     * only narrows the previous one is answered by filtering its results.
+     */
+    public void handleLiveSearch() {
+        String searchTerm = view.getSearchText().trim();
+        if (searchTerm.isEmpty()) {
+            cancelCurrentSearch();
+            clearSearchHits();
+            view.clearResults();
+            lastSearchKey = null;
+            return;
+        }
+        if (searchKey(searchTerm).equals(lastSearchKey)) {
+            return; // Only spaces changed
+        }
+        startSearch(searchTerm, false);
+    }
+
+    private String searchKey(String searchTerm) {
+        return searchTerm + "\0" + view.isRankedSearch() + "\0" + view.isFuzzySearch();
+    }
+
+    private void startSearch(String searchTerm, boolean reportNoMatch) {
+        // Stop the search in progress, its remaining results are no longer wanted
+        cancelCurrentSearch();
+
+        // Clear previous results
+        clearSearchHits();
+        view.clearResults();
+
+        // Perform search in the background, results are streamed to the view in batches
+        lastSearchKey = searchKey(searchTerm);
         model.setSearchTerm(searchTerm);
-        List<String> results = model.searchRecords();
-        
-        if (results.isEmpty()) {
-            showAlert("Search Results", "No matches found", 
-                     "No records found matching the search term: " + searchTerm);
+        model.setFuzzy(view.isFuzzySearch());
+        SearchTask search = new SearchTask(view.isRankedSearch());
+        search.setOnSucceeded(e -> {
+            if (reportNoMatch && search == currentSearch && search.getValue() == 0) {
+                showAlert("Search Results", "No matches found", 
+                         "No records found matching the search term: " + searchTerm);
+            }
+        });
+        search.setOnFailed(e -> {
+            if (search == currentSearch) {
+                showAlert("Error", "Search failed",
+                         "An error occurred while searching the records: " + search.getException().getMessage());
+            }
+        });
+        currentSearch = search;
+        searchExecutor.execute(search);
+    }
+
+    private void cancelCurrentSearch() {
+        if (currentSearch != null) {
+            // No interrupt: it would close the file channels shared with the scan workers
+            currentSearch.cancel(false);
+            currentSearch = null;
+        }
+    }
+
+    private void clearSearchHits() {
+        searchHits.clear();
+        shownHits = 0;
+        moreResultsRequested = false;
+    }
+
+    /**
+     * Called by the view when the user scrolled close to the last loaded result.
+     */
+    public void handleLoadMoreResults() {
+        if (shownHits < searchHits.size()) {
+            showResultsUpTo(shownHits + RESULT_PAGE_SIZE);
         } else {
-            // Display results
-            results.forEach(result -> view.addResultItem(result));
+            // Nothing buffered yet, show the next page as soon as the search delivers it
+            moreResultsRequested = true;
+        }
+    }
+
+    private void addSearchHits(FoundRecords hits) {
+        searchHits.addAll(hits);
+        if (shownHits < RESULT_PAGE_SIZE) {
+            showResultsUpTo(RESULT_PAGE_SIZE);
+        } else if (moreResultsRequested) {
+            moreResultsRequested = false;
+            showResultsUpTo(shownHits + RESULT_PAGE_SIZE);
+        }
+    }
+
+    private void showResultsUpTo(int limit) {
+        int end = Math.min(limit, searchHits.size());
+        if (end > shownHits) {
+            view.addResultItems(searchHits.format(shownHits, end));
+            shownHits = end;
+        }
+    }
+
+    /**
+     * Runs the model search on a worker thread and hands hits to the view in
+     * batches: the first hit right away, then at most about once per frame.
+     * Hits stay unformatted (record ids, raw lines) until they are shown.
+     */
+    private class SearchTask extends Task<Integer> {
+        private final boolean ranked;
+        private FoundRecords batch = new FoundRecords();
+        private long lastFlush;
+        private int count;
+
+        SearchTask(boolean ranked) {
+            this.ranked = ranked;
+        }
+
+        @Override
+        protected Integer call() {
+            if (ranked) {
+                // The best ones only arrive once every match was scored, at most RANKED_RESULTS of them
+                model.searchRecordsRanked(RANKED_RESULTS, result -> {
+                    batch.addFormatted(result);
+                    found();
+                }, this::isCancelled);
+            } else {
+                model.searchRecords((snapshot, id) -> {
+                    batch.visit(snapshot, id);
+                    found();
+                }, line -> {
+                    batch.addLine(line);
+                    found();
+                }, this::isCancelled);
+            }
+            flush();
+            return count;
+        }
+
+        private void found() {
+            count++;
+            if (count == 1 || batch.size() >= RESULT_BATCH_SIZE
+                    || System.nanoTime() - lastFlush >= RESULT_BATCH_NANOS) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            if (batch.isEmpty()) {
+                return;
+            }
+            FoundRecords items = batch;
+            batch = new FoundRecords();
+            lastFlush = System.nanoTime();
+            Platform.runLater(() -> {
+                if (this == currentSearch && !isCancelled()) {
+                    addSearchHits(items);
+                }
+            });
         }
     }
 
@@ -75,14 +278,26 @@ public class MainController {
             showAlert("Error", "No content to add", "Please enter some content in the text area.");
             return;
         }
+        if (currentAdd != null) {
+            showAlert("Error", "An add is in progress",
+                     "Wait for the current add to finish or cancel it before adding more content.");
+            return;
+        }
         
         try {
-            // Get the window from the view
+            // Get the window from the view; the save dialog has to run here, on the FX thread
             javafx.stage.Window window = view.getScene().getWindow();
-            boolean contentSaved = model.addNewContent(content, window);
-            
-            // Only show success and clean fields if content was actually saved
-            if (contentSaved) {
+            String savedFilePath = model.chooseDestination(content, window);
+            if (savedFilePath == null) {
+                return; // User cancelled the save dialog
+            }
+
+            // Copies and the records append run in the background, the UI stays responsive
+            AddTask add = new AddTask(content, new File(savedFilePath));
+            add.setOnSucceeded(e -> {
+                finishAdd();
+                cancelCurrentSearch();
+                clearSearchHits();
                 view.cleanAllFields();
                 
                 // Show success dialog
@@ -91,7 +306,18 @@ public class MainController {
                 successAlert.setHeaderText("Content Added");
                 successAlert.setContentText("The content was successfully added to the file.");
                 successAlert.showAndWait();
-            }
+            });
+            add.setOnFailed(e -> {
+                finishAdd();
+                Throwable error = add.getException();
+                if (!(error instanceof CancellationException)) {
+                    showAlert("Error", "Failed to add content", 
+                             "An error occurred while adding the content: " + error.getMessage());
+                }
+            });
+            currentAdd = add;
+            view.showAddProgress(add);
+            addExecutor.execute(add);
             
         } catch (Exception e) {
             showAlert("Error", "Failed to add content", 
@@ -99,11 +325,81 @@ public class MainController {
         }
     }
 
+    /**
+     * Stops the running add while its attachments are being copied. Once the
+     * copies are done the add is committed and finishes normally.
+     */
+    public void handleCancelAdd() {
+        if (currentAdd != null) {
+            currentAdd.cancelRequested = true;
+        }
+    }
+
+    private void finishAdd() {
+        currentAdd = null;
+        view.hideAddProgress();
+    }
+
+    /**
+     * Copies the attachments of an add and appends its record on a worker
+     * thread, publishing the copy progress and throughput.
+     */
+    private class AddTask extends Task<Void> {
+        private final String content;
+        private final File destinationFile;
+        // Not Task.cancel: that would report the add cancelled even when it was already committed
+        private volatile boolean cancelRequested;
+
+        AddTask(String content, File destinationFile) {
+            this.content = content;
+            this.destinationFile = destinationFile;
+        }
+
+        @Override
+        protected Void call() throws Exception {
+            long start = System.nanoTime();
+            updateMessage("Copying attachments...");
+            model.storeNewContent(content, destinationFile, (copied, total) -> {
+                double seconds = Math.max(1e-3, (System.nanoTime() - start) / 1e9);
+                updateProgress(copied, Math.max(1, total));
+                updateMessage(String.format("Copying attachments: %.1f of %.1f MB (%.1f MB/s)",
+                    copied / 1048576.0, total / 1048576.0, copied / 1048576.0 / seconds));
+            }, () -> cancelRequested).join();
+            updateMessage("Saved");
+            model.refreshRecordsNow();
+            return null;
+        }
+    }
+
     public void handleClean() {
+        cancelCurrentSearch();
+        clearSearchHits();
         view.cleanAllFields();
     }
 
     public void handleItemSelection(String selectedText) {
+        // Time spent on the FX thread only, file text is read afterwards in the background
+        OperationTimer timer = Metrics.timer("handleItemSelection");
+        long start = timer.start();
+        try {
+            showSelection(selectedText, true);
+            timer.stop(start);
+        } catch (RuntimeException e) {
+            timer.fail(start);
+            throw e;
+        }
+    }
+
+    /**
+     * Shows the selected record in the preview. Nothing here touches the disk:
+     * fields are looked up in the field catalog and file text is read in the
+     * background. With recheck, the record's paths are checked again in the
+     * background and the selection shown again if any of them changed.
+     */
+    private void showSelection(String selectedText, boolean recheck) {
+        previewGeneration++;
+        previewStreams.clear();
+        int generation = previewGeneration;
         try {
             String[] parts = selectedText.split("\\|");
             StringBuilder result = new StringBuilder();
@@ -113,43 +409,44 @@ public class MainController {
                 String cleaned = part.trim();
                 
                 if (!cleaned.isEmpty()) {
-                    try {
-                        Path filePath = Paths.get(cleaned);
-                        if (Files.exists(filePath) && Files.isRegularFile(filePath)) {
-                            String fileName = filePath.toString();
-                            // File link with tooltip - optimized string concatenation
-                            result.append("File: <a href='javascript:void(0)' ")
-                                  .append("onclick='javaApp.openFile(\"").append(escapeJavaScript(fileName)).append("\")' ")
-                                  .append("style='color: green; text-decoration: underline;' ")
-                                  .append("title='").append(TOOLTIP_FILE).append("'>")
-                                  .append(escapeHtml(fileName))
-                                  .append("</a> ");
-
-                            // Folder icon with tooltip - optimized
-                            result.append("<a href='javascript:void(0)' ")
-                                  .append("onclick='javaApp.openFolder(\"").append(escapeJavaScript(filePath.getParent().toString())).append("\")' ")
-                                  .append("style='text-decoration: none; margin-left: 5px;' ")
-                                  .append("title='").append(TOOLTIP_FOLDER).append("'>")
-                                  .append("<img src='data:image/png;base64,")
-                                  .append(MainView.getFolderIconBase64())
-                                  .append("' style='width: 16px; height: 16px; vertical-align: middle;' alt='pasta'/>")
-                                  .append("</a>");
-
-                            // If it's a txt file, append its content
-                            if (fileName.toLowerCase().endsWith(".txt")) {
-                                String content = Files.readString(Path.of(filePath.toString()), StandardCharsets.UTF_8);                                result.append("\nContent:\n");
-                                result.append(processTextForUrls(content));
-                            } else {
-                                result.append("\n(Not a text file)");
-                            }
-                            result.append("\n\n");
-                            foundAnyFile = true;
+                    // Relative paths are files of the records folder
+                    boolean path = fieldCatalog.kindOf(cleaned) == FieldCatalog.Kind.PATH;
+                    FieldCatalog.FileInfo info = path ? fieldCatalog.getFileInfo(cleaned) : null;
+                    if (info != null && info.isRegularFile()) {
+                        Path filePath = fieldCatalog.resolve(cleaned);
+                        String fileName = filePath.toString();
+                        // File link with tooltip - optimized string concatenation
+                        result.append("File: <a href='javascript:void(0)' ")
+                              .append("onclick='javaApp.openFile(\"").append(escapeJavaScript(fileName)).append("\")' ")
+                              .append("style='color: green; text-decoration: underline;' ")
+                              .append("title='").append(TOOLTIP_FILE).append("'>")
+                              .append(escapeHtml(fileName))
+                              .append("</a> ");
+
+                        // Folder icon with tooltip - optimized
+                        result.append("<a href='javascript:void(0)' ")
+                              .append("onclick='javaApp.openFolder(\"").append(escapeJavaScript(filePath.getParent().toString())).append("\")' ")
+                              .append("style='text-decoration: none; margin-left: 5px;' ")
+                              .append("title='").append(TOOLTIP_FOLDER).append("'>")
+                              .append("<img src='data:image/png;base64,")
+                              .append(MainView.getFolderIconBase64())
+                              .append("' style='width: 16px; height: 16px; vertical-align: middle;' alt='pasta'/>")
+                              .append("</a>");
+
+                        // If it's a txt file, append its content, read in pieces as it scrolls into view
+                        if (fileName.toLowerCase().endsWith(".txt")) {
+                            result.append("\nContent:\n");
+                            result.append(textPreviewElement(filePath, info));
                         } else {
-                            // Not a file, check for URLs in the text
-                            result.append(processTextForUrls(cleaned)).append("\n");
+                            result.append("\n(Not a text file)");
                         }
-                    } catch (Exception e) {
-                        // If path is invalid, just process the text for URLs
+                        result.append("\n\n");
+                        foundAnyFile = true;
+                    } else if (info == null && path) {
+                        // Not checked yet, shown again once the check below is done
+                        result.append(escapeHtml(cleaned)).append(" (checking file...)\n");
+                    } else {
+                        // Not a file, check for URLs in the text
                         result.append(processTextForUrls(cleaned)).append("\n");
                     }
                 }
@@ -161,6 +458,14 @@ public class MainController {
             }
 
             view.setFoundItemsText(result.toString());
+
+            if (recheck) {
+                fieldCatalog.check(Arrays.asList(parts), () -> Platform.runLater(() -> {
+                    if (generation == previewGeneration) {
+                        showSelection(selectedText, false);
+                    }
+                }));
+            }
             
         } catch (Exception e) {
             System.err.println("Error in handleItemSelection");
@@ -172,7 +477,121 @@ public class MainController {
         }
     }
 
-    private String processTextForUrls(String text) {
+    /**
+     * Called by the preview when the end of a file's text scrolls into view:
+     * reads the next piece in the background and appends it to the preview.
+     */
+    public void handleMorePreview(String elementId) {
+        PreviewStream stream = previewStreams.get(elementId);
+        if (stream == null || stream.loading) {
+            return;
+        }
+        stream.loading = true;
+        int generation = previewGeneration;
+        previewExecutor.submit(() -> {
+            PreviewChunk chunk;
+            String error = null;
+            try {
+                chunk = readPreviewChunk(stream.path, stream.modified, stream.size, stream.nextOffset);
+            } catch (IOException e) {
+                System.err.println("Error reading preview of " + stream.path + ": " + e.getMessage());
+                chunk = null;
+                error = e.getMessage();
+            }
+            PreviewChunk read = chunk;
+            String readError = error;
+            Platform.runLater(() -> {
+                if (generation != previewGeneration) {
+                    return; // Another selection is shown now
+                }
+                stream.loading = false;
+                if (read == null) {
+                    previewStreams.remove(elementId);
+                    view.appendPreviewChunk(elementId,
+                        escapeHtml("\n(Could not read the rest of the file: " + readError + ")"), true);
+                    return;
+                }
+                stream.nextOffset = read.endOffset;
+                if (!read.truncated) {
+                    previewStreams.remove(elementId);
+                }
+                view.appendPreviewChunk(elementId, read.html, !read.truncated);
+            });
+        });
+    }
+
+    /**
+     * Empty element the pieces of a text file are appended to, starting with
+     * the first one as soon as the preview is shown.
+     */
+    private String textPreviewElement(Path filePath, FieldCatalog.FileInfo info) {
+        String elementId = "preview-" + previewStreams.size();
+        previewStreams.put(elementId, new PreviewStream(filePath, info.getModified(), info.getSize(), 0));
+        return "<span id='" + elementId + "' class='preview-pending'></span>";
+    }
+
+    /**
+     * Rendered piece of a file starting at offset, from the cache when the file
+     * has not changed since it was last shown. Called from the FX thread and
+     * from the preview reader.
+     */
+    private PreviewChunk readPreviewChunk(Path filePath, long modified, long size, long offset) throws IOException {
+        // Modification time and size together tell a changed file apart
+        String key = filePath.toString() + '\0' + modified + '\0' + size + '\0' + offset;
+        PreviewChunk cached = previewCache.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        FilePreview preview = FilePreview.read(filePath, offset, PREVIEW_CHUNK_BYTES);
+        PreviewChunk chunk = new PreviewChunk(processTextForUrls(preview.getText()),
+            preview.getEndOffset(), preview.isTruncated());
+        previewCache.put(key, chunk);
+        return chunk;
+    }
+
+    private static class PreviewChunk {
+        final String html;
+        final long endOffset;
+        final boolean truncated;
+
+        PreviewChunk(String html, long endOffset, boolean truncated) {
+            this.html = html;
+            this.endOffset = endOffset;
+            this.truncated = truncated;
+        }
+    }
+
+    private static class PreviewStream {
+        final Path path;
+        final long modified;
+        final long size;
+        long nextOffset;
+        boolean loading;
+
+        PreviewStream(Path path, long modified, long size, long nextOffset) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.nextOffset = nextOffset;
+        }
+    }
+
+    /**
+     * Reads a size setting from the environment, in units of unitBytes.
+     */
+    private static long sizeFromEnv(String name, long defaultUnits, long unitBytes) {
+        String setting = System.getenv(name);
+        if (setting != null && !setting.trim().isEmpty()) {
+            try {
+                return Math.max(1, Long.parseLong(setting.trim())) * unitBytes;
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid " + name + " value, using " + defaultUnits + ": " + setting);
+            }
+        }
+        return defaultUnits * unitBytes;
+    }
+
+    public static String processTextForUrls(String text) {
         if (text == null || text.isEmpty()) {
             return "";
         }
@@ -205,13 +624,13 @@ public class MainController {
         return result.toString();
     }
 
-    private String escapeJavaScript(String text) {
+    private static String escapeJavaScript(String text) {
         return text.replace("\\", "\\\\")
                    .replace("\"", "\\\"")
                    .replace("'", "\\'");
     }
 
-    private String escapeHtml(String text) {
+    private static String escapeHtml(String text) {
         return text.replace("&", "&amp;")
                    .replace("<", "&lt;")
                    .replace(">", "&gt;")
@@ -0,0 +1,260 @@
+package com.archiver.models;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shared folder holding one copy of each distinct attachment, addressed by
+ * size and SHA-256 of its content.
+ *
+ * An attachment is looked up by size first: a size no stored copy has is new
+ * content, and it is copied without ever being hashed. Only when sizes match
+ * are the SHA-256 of the new file and of the stored copies compared (a stored
+ * copy's hash is computed the first time it is needed and remembered along
+ * with the copy's modification time; a copy modified since, through one of its
+ * hard links for instance, is hashed again). Adding the same file again costs
+ * one hash instead of a copy and its disk space.
+ *
+ * Records do not point into the store directly when it can be avoided: the
+ * attachment keeps its usual name in the destination folder as a hard link to
+ * the stored copy. Where hard links are not possible (another volume, a
+ * filesystem without them) records point to the stored copy itself.
+ *
+ * The store remembers its copies in "index.txt", one "size hash@modified name"
+ * line per copy, modified in milliseconds ("-" for a hash not computed yet);
+ * later lines win.
+ */
+public class AttachmentStore {
+    private static final String INDEX_FILE = "index.txt";
+    private static final String NO_HASH = "-";
+    private static final char MODIFIED_SEPARATOR = '@';
+    private static final int HASH_BUFFER_SIZE = 1 << 20;
+
+    private final Path folder;
+    private final Path indexPath;
+    private final Map<Long, List<Entry>> bySize = new HashMap<>();
+    // Names handed out by reserve and not added yet
+    private final Set<String> reserved = new HashSet<>();
+    private int entryCount;
+    private boolean loaded;
+
+    /**
+     * The content of a file about to be added, and the stored copy with the
+     * same content if there is one.
+     */
+    public static final class Lookup {
+        private final Path existing;
+        private final long size;
+        private final String hash;
+
+        private Lookup(Path existing, long size, String hash) {
+            this.existing = existing;
+            this.size = size;
+            this.hash = hash;
+        }
+
+        /** Stored copy with the same content, or null when the content is new. */
+        public Path getExisting() {
+            return existing;
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final long size;
+        String hash;
+        // Modification time of the copy when hashed, -1 when not known
+        long modified;
+
+        Entry(String name, long size, String hash, long modified) {
+            this.name = name;
+            this.size = size;
+            this.hash = hash;
+            this.modified = modified;
+        }
+    }
+
+    public AttachmentStore(Path folder) {
+        this.folder = folder.toAbsolutePath();
+        this.indexPath = this.folder.resolve(INDEX_FILE);
+    }
+
+    /**
+     * Store for a records file: the ATTACHMENT_STORE folder if that variable
+     * is set, otherwise "attachment-store" next to the records file. It should
+     * be on the same volume as the destination folders so copies can be linked.
+     */
+    public static AttachmentStore forRecords(Path recordsPath) {
+        String folder = System.getenv("ATTACHMENT_STORE");
+        if (folder != null && !folder.trim().isEmpty()) {
+            return new AttachmentStore(Paths.get(folder.trim()));
+        }
+        return new AttachmentStore(recordsPath.toAbsolutePath().resolveSibling("attachment-store"));
+    }
+
+    /**
+     * Finds a stored copy with the content of source.
+     */
+    public synchronized Lookup lookup(Path source) throws IOException {
+        load();
+        long size = Files.size(source);
+        List<Entry> candidates = bySize.get(size);
+        if (candidates == null || candidates.isEmpty()) {
+            // No copy has this size, it cannot be a duplicate
+            return new Lookup(null, size, null);
+        }
+
+        String hash = hash(source);
+        for (Iterator<Entry> it = candidates.iterator(); it.hasNext(); ) {
+            Entry candidate = it.next();
+            Path stored = folder.resolve(candidate.name);
+            if (!Files.isRegularFile(stored) || Files.size(stored) != size) {
+                // Removed or changed outside the application
+                it.remove();
+                continue;
+            }
+            long modified = Files.getLastModifiedTime(stored).toMillis();
+            if (candidate.hash == null || candidate.modified != modified) {
+                // Same size is not enough, the content may have been edited in place
+                candidate.hash = hash(stored);
+                candidate.modified = modified;
+                appendToIndex(candidate);
+            }
+            if (candidate.hash.equals(hash)) {
+                return new Lookup(stored, size, hash);
+            }
+        }
+        return new Lookup(null, size, hash);
+    }
+
+    /**
+     * Path in the store for a new copy of source. Call {@link #add} once the
+     * copy is complete.
+     */
+    public synchronized Path reserve(Path source) throws IOException {
+        load();
+        Files.createDirectories(folder);
+        String fileName = source.getFileName().toString();
+        int number = entryCount + reserved.size();
+        String name;
+        do {
+            name = number++ + "_" + fileName;
+        } while (reserved.contains(name) || Files.exists(folder.resolve(name)));
+        reserved.add(name);
+        return folder.resolve(name);
+    }
+
+    /**
+     * Registers a complete copy made at a path returned by {@link #reserve}.
+     */
+    public synchronized void add(Path storedCopy, Lookup lookup) throws IOException {
+        String name = storedCopy.getFileName().toString();
+        reserved.remove(name);
+        Entry entry = new Entry(name, lookup.size, lookup.hash, Files.getLastModifiedTime(storedCopy).toMillis());
+        bySize.computeIfAbsent(entry.size, k -> new ArrayList<>()).add(entry);
+        entryCount++;
+        appendToIndex(entry);
+    }
+
+    /**
+     * Gives up a path returned by {@link #reserve} whose copy was not made.
+     */
+    public synchronized void release(Path storedCopy) {
+        reserved.remove(storedCopy.getFileName().toString());
+    }
+
+    /**
+     * Makes the stored copy available at link as a hard link.
+     *
+     * @return link, or the stored copy itself when it cannot be linked
+     */
+    public static Path link(Path storedCopy, Path link) {
+        try {
+            Files.createLink(link, storedCopy);
+            return link;
+        } catch (IOException | UnsupportedOperationException e) {
+            System.err.println("Could not link " + link + " to the attachment store, using the stored copy: "
+                + e.getMessage());
+            return storedCopy;
+        }
+    }
+
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        if (Files.isRegularFile(indexPath)) {
+            Map<String, Entry> byName = new HashMap<>();
+            for (String line : Files.readAllLines(indexPath, StandardCharsets.UTF_8)) {
+                String[] fields = line.split(" ", 3);
+                if (fields.length < 3) {
+                    continue; // Torn last line
+                }
+                try {
+                    String hash = fields[1].equals(NO_HASH) ? null : fields[1];
+                    long modified = -1;
+                    int separator = fields[1].indexOf(MODIFIED_SEPARATOR);
+                    if (separator >= 0) {
+                        hash = fields[1].substring(0, separator);
+                        modified = Long.parseLong(fields[1].substring(separator + 1));
+                    }
+                    byName.put(fields[2], new Entry(fields[2], Long.parseLong(fields[0]), hash, modified));
+                } catch (NumberFormatException e) {
+                    System.err.println("Skipping bad attachment store index line: " + line);
+                }
+            }
+            for (Entry entry : byName.values()) {
+                bySize.computeIfAbsent(entry.size, k -> new ArrayList<>()).add(entry);
+            }
+            entryCount = byName.size();
+        }
+        loaded = true;
+    }
+
+    private void appendToIndex(Entry entry) throws IOException {
+        Files.createDirectories(folder);
+        try (BufferedWriter writer = Files.newBufferedWriter(indexPath, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            String hash = entry.hash != null ? entry.hash + MODIFIED_SEPARATOR + entry.modified : NO_HASH;
+            writer.write(entry.size + " " + hash + " " + entry.name + "\n");
+        }
+    }
+
+    private static String hash(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(HASH_BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+}
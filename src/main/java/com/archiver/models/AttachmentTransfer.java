@@ -0,0 +1,171 @@
+package com.archiver.models;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Copies the attachments of an add, several at a time.
+ *
+ * Each file is copied channel to channel with {@link FileChannel#transferTo},
+ * which lets the operating system move the bytes without them passing through
+ * the Java heap. Copies go in slices so progress can be reported and a
+ * cancellation noticed while a large file is still being copied. A copy only
+ * counts as done once it is synced and has the size of its source; if any copy
+ * fails or the transfer is cancelled, every copy made so far is deleted.
+ */
+public class AttachmentTransfer {
+    // Bytes handed to transferTo at a time, between progress reports and cancellation checks
+    private static final long SLICE_SIZE = 16L << 20;
+    private static final int MAX_PARALLEL_COPIES = 4;
+
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(MAX_PARALLEL_COPIES, runnable -> {
+        Thread thread = new Thread(runnable, "attachment-copy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Told how many bytes were copied so far, from the copying threads.
+     */
+    public interface Progress {
+        Progress NONE = (copied, total) -> { };
+
+        void update(long copiedBytes, long totalBytes);
+    }
+
+    private final List<Path> sources = new ArrayList<>();
+    private final List<Path> targets = new ArrayList<>();
+
+    public void add(Path source, Path target) {
+        sources.add(source);
+        targets.add(target);
+    }
+
+    public boolean isEmpty() {
+        return sources.isEmpty();
+    }
+
+    /**
+     * Copies every file and returns once all of them are verified.
+     *
+     * @throws CancellationException when cancelled returned true before the end
+     */
+    public void copyAll(Progress progress, BooleanSupplier cancelled) throws IOException {
+        long total = 0;
+        for (Path source : sources) {
+            total += Files.size(source);
+        }
+        long totalBytes = total;
+        AtomicLong copied = new AtomicLong();
+        progress.update(0, totalBytes);
+        // Set when one copy failed, so the others stop too
+        AtomicBoolean failed = new AtomicBoolean();
+        BooleanSupplier stop = () -> failed.get() || cancelled.getAsBoolean();
+        Queue<Path> created = new ConcurrentLinkedQueue<>();
+
+        List<Future<?>> copies = new ArrayList<>();
+        for (int i = 0; i < sources.size(); i++) {
+            Path source = sources.get(i);
+            Path target = targets.get(i);
+            copies.add(POOL.submit(() -> {
+                try {
+                    copy(source, target, created, bytes -> progress.update(copied.addAndGet(bytes), totalBytes), stop);
+                } catch (IOException e) {
+                    failed.set(true);
+                    throw new UncheckedIOException(e);
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                    throw e;
+                }
+                return null;
+            }));
+        }
+
+        try {
+            for (Future<?> copy : copies) {
+                copy.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed.set(true);
+            deleteCopies(copies, created);
+            throw new CancellationException("Interrupted while copying attachments");
+        } catch (ExecutionException e) {
+            failed.set(true);
+            deleteCopies(copies, created);
+            Throwable cause = e.getCause();
+            if (cause instanceof CancellationException) {
+                throw (CancellationException) cause;
+            }
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException("Failed to copy attachments", cause);
+        }
+    }
+
+    private interface Copied {
+        void add(long bytes);
+    }
+
+    private static void copy(Path source, Path target, Queue<Path> created, Copied copied, BooleanSupplier cancelled)
+            throws IOException {
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            created.add(target);
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                if (cancelled.getAsBoolean()) {
+                    throw new CancellationException("Attachment copy cancelled");
+                }
+                long transferred = in.transferTo(position, Math.min(SLICE_SIZE, size - position), out);
+                if (transferred <= 0) {
+                    throw new IOException("Could not read " + source + " past byte " + position);
+                }
+                position += transferred;
+                copied.add(transferred);
+            }
+            out.force(true);
+            if (out.size() != size) {
+                throw new IOException("Copy of " + source + " has " + out.size() + " bytes instead of " + size);
+            }
+        }
+        // Same as COPY_ATTRIBUTES did for the modification time
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+    }
+
+    private static void deleteCopies(List<Future<?>> copies, Queue<Path> created) {
+        // Let the other copies stop before removing what they wrote
+        for (Future<?> copy : copies) {
+            try {
+                copy.get();
+            } catch (Exception e) {
+                // Already failed or cancelled, the file is removed below either way
+            }
+        }
+        for (Path target : created) {
+            try {
+                Files.deleteIfExists(target);
+            } catch (IOException e) {
+                System.err.println("Could not remove partial attachment copy " + target + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.archiver.models;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.archiver.utils.Metrics;
+import com.archiver.utils.OperationTimer;
+
+/**
+ * Incremental backups of the records file kept in the "backup" folder next to it.
+ *
+ * Instead of copying the whole file on every add, each add writes only the
+ * bytes it appends to an append-only journal ("&lt;name&gt;.journal"), before
+ * they reach the records file. Every so often a full checkpoint
+ * ("&lt;name&gt;_checkpoint_&lt;sequence&gt;.back") is written. Version N of the
+ * records file is the newest checkpoint at or before N plus the journal
+ * entries after it, so any earlier version can be rebuilt with
+ * {@link #restore(long, Path)}.
+ *
+ * A new checkpoint is taken when the records file no longer has the size the
+ * journal expects (it was edited outside the application), or once the journal
+ * since the last checkpoint grew as large as that checkpoint. A restore then
+ * replays at most about a checkpoint's worth of journal, and checkpoints cost
+ * in proportion to the bytes added, never to the number of adds.
+ */
+public class BackupJournal {
+    // Small files are not worth a checkpoint every few adds
+    private static final long MIN_CHECKPOINT_BYTES = 1L << 20;
+    // sequence, timestamp, offset, length, crc
+    private static final int ENTRY_HEADER_SIZE = 8 + 8 + 8 + 4 + 4;
+
+    private final Path recordsPath;
+    private final Path backupFolder;
+    private final Path journalPath;
+    private final String baseName;
+
+    private boolean loaded;
+    private long lastSequence;
+    private long expectedSize = -1;
+    private long checkpointSequence = -1;
+    private long checkpointSize;
+    private long bytesSinceCheckpoint;
+
+    public BackupJournal(Path recordsPath) {
+        this.recordsPath = recordsPath;
+        this.backupFolder = recordsPath.toAbsolutePath().resolveSibling("backup");
+        String fileName = recordsPath.getFileName().toString();
+        int dot = fileName.lastIndexOf('.');
+        this.baseName = dot > 0 ? fileName.substring(0, dot) : fileName;
+        this.journalPath = backupFolder.resolve(baseName + ".journal");
+    }
+
+    /**
+     * Records the bytes about to be appended to the records file. Must be
+     * called before the append so a crash never loses an add the file has.
+     *
+     * @return the sequence number of the version the append produces
+     */
+    public synchronized long recordAppend(byte[] appended) throws IOException {
+        return recordAppends(Collections.singletonList(appended));
+    }
+
+    /**
+     * Records several appends that will reach the records file back to back,
+     * in order, with a single sync of the journal for all of them.
+     *
+     * @return the sequence number of the version the last append produces
+     */
+    public synchronized long recordAppends(List<byte[]> appends) throws IOException {
+        // The backup of every add, whichever way it came in, checkpoints included
+        OperationTimer timer = Metrics.timer("backupRecordsFile");
+        long start = timer.start();
+        try {
+            long sequence = writeEntries(appends);
+            timer.stop(start);
+            return sequence;
+        } catch (IOException | RuntimeException e) {
+            timer.fail(start);
+            throw e;
+        }
+    }
+
+    private long writeEntries(List<byte[]> appends) throws IOException {
+        load();
+        long size = Files.size(recordsPath);
+        if (size != expectedSize) {
+            // Changed outside the journal: that state becomes a version of its own
+            if (lastSequence > 0 || checkpointSequence >= 0) {
+                lastSequence++;
+            }
+            writeCheckpoint(size);
+        } else if (bytesSinceCheckpoint >= Math.max(checkpointSize, MIN_CHECKPOINT_BYTES)) {
+            writeCheckpoint(size);
+        }
+
+        ByteBuffer[] entries = new ByteBuffer[appends.size()];
+        long sequence = lastSequence;
+        long offset = size;
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < entries.length; i++) {
+            byte[] appended = appends.get(i);
+            CRC32 crc = new CRC32();
+            crc.update(appended);
+            entries[i] = ByteBuffer.allocate(ENTRY_HEADER_SIZE + appended.length);
+            entries[i].putLong(++sequence)
+                      .putLong(timestamp)
+                      .putLong(offset)
+                      .putInt(appended.length)
+                      .putInt((int) crc.getValue())
+                      .put(appended)
+                      .flip();
+            offset += appended.length;
+        }
+        try (FileChannel journal = FileChannel.open(journalPath,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (entries.length > 0 && entries[entries.length - 1].hasRemaining()) {
+                journal.write(entries);
+            }
+            journal.force(false);
+        }
+
+        lastSequence = sequence;
+        bytesSinceCheckpoint += offset - size;
+        expectedSize = offset;
+        return sequence;
+    }
+
+    public synchronized long getLatestSequence() throws IOException {
+        load();
+        return lastSequence;
+    }
+
+    /**
+     * Rebuilds the records file as it was right after the given version into target.
+     */
+    public synchronized void restore(long sequence, Path target) throws IOException {
+        load();
+        if (sequence < 0 || sequence > lastSequence) {
+            throw new IllegalArgumentException("Unknown backup version: " + sequence);
+        }
+        long baseSequence = -1;
+        try (DirectoryStream<Path> checkpoints = Files.newDirectoryStream(backupFolder, baseName + "_checkpoint_*.back")) {
+            for (Path checkpoint : checkpoints) {
+                long checkpointVersion = checkpointSequenceOf(checkpoint);
+                if (checkpointVersion <= sequence && checkpointVersion > baseSequence) {
+                    baseSequence = checkpointVersion;
+                }
+            }
+        }
+        if (baseSequence < 0) {
+            throw new IOException("No checkpoint found for backup version " + sequence);
+        }
+        Files.copy(checkpointPath(baseSequence), target, StandardCopyOption.REPLACE_EXISTING);
+
+        try (FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(target, StandardOpenOption.WRITE)) {
+            long position = 0;
+            ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            while (position < journal.size()) {
+                header.clear();
+                readFully(journal, header, position);
+                header.flip();
+                long entrySequence = header.getLong();
+                header.getLong();
+                long offset = header.getLong();
+                int length = header.getInt();
+                if (entrySequence > sequence) {
+                    break;
+                }
+                if (entrySequence > baseSequence) {
+                    ByteBuffer data = ByteBuffer.allocate(length);
+                    readFully(journal, data, position + ENTRY_HEADER_SIZE);
+                    data.flip();
+                    output.truncate(offset);
+                    output.write(data, offset);
+                }
+                position += ENTRY_HEADER_SIZE + length;
+            }
+        }
+    }
+
+    private void writeCheckpoint(long size) throws IOException {
+        Path checkpoint = checkpointPath(lastSequence);
+        Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.copy(recordsPath, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointSequence = lastSequence;
+        checkpointSize = size;
+        bytesSinceCheckpoint = 0;
+        expectedSize = size;
+    }
+
+    private Path checkpointPath(long sequence) {
+        return backupFolder.resolve(baseName + "_checkpoint_" + sequence + ".back");
+    }
+
+    private long checkpointSequenceOf(Path checkpoint) {
+        String name = checkpoint.getFileName().toString();
+        String number = name.substring((baseName + "_checkpoint_").length(), name.length() - ".back".length());
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the journal headers once to find the latest version and the file
+     * size it implies, cutting off an entry left incomplete by a crash.
+     */
+    private void load() throws IOException {
+        if (loaded) {
+            return;
+        }
+        Files.createDirectories(backupFolder);
+
+        try (DirectoryStream<Path> checkpoints = Files.newDirectoryStream(backupFolder, baseName + "_checkpoint_*.back")) {
+            for (Path checkpoint : checkpoints) {
+                long sequence = checkpointSequenceOf(checkpoint);
+                if (sequence > checkpointSequence) {
+                    checkpointSequence = sequence;
+                    checkpointSize = Files.size(checkpoint);
+                }
+            }
+        }
+        expectedSize = checkpointSequence >= 0 ? checkpointSize : -1;
+        lastSequence = Math.max(checkpointSequence, 0);
+
+        if (Files.exists(journalPath)) {
+            try (FileChannel journal = FileChannel.open(journalPath, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long position = 0;
+                long size = journal.size();
+                ByteBuffer header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+                while (position + ENTRY_HEADER_SIZE <= size) {
+                    header.clear();
+                    readFully(journal, header, position);
+                    header.flip();
+                    long sequence = header.getLong();
+                    header.getLong();
+                    long offset = header.getLong();
+                    int length = header.getInt();
+                    int crc = header.getInt();
+                    long entryEnd = position + ENTRY_HEADER_SIZE + length;
+                    // Only the last entry can be torn by a crash, so only its data is verified
+                    if (length < 0 || entryEnd > size
+                            || (entryEnd == size && crc != checksum(journal, position + ENTRY_HEADER_SIZE, length))) {
+                        break;
+                    }
+                    lastSequence = Math.max(lastSequence, sequence);
+                    if (sequence > checkpointSequence) {
+                        expectedSize = offset + length;
+                        bytesSinceCheckpoint += length;
+                    }
+                    position += ENTRY_HEADER_SIZE + length;
+                }
+                if (position < size) {
+                    System.err.println("Discarding incomplete backup journal entry at " + position);
+                    journal.truncate(position);
+                }
+            }
+        }
+        loaded = true;
+    }
+
+    private static int checksum(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(channel, data, position);
+        CRC32 crc = new CRC32();
+        crc.update(data.array(), 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException("Backup journal ends in the middle of an entry");
+            }
+            position += read;
+        }
+    }
+}
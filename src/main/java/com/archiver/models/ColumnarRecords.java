@@ -0,0 +1,341 @@
+package com.archiver.models;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary records file, an optional alternative to the ';' separated text file
+ * for records files whose name ends in ".arcs".
+ *
+ * Records are written in segments, each holding its records column by column:
+ * first field of every record, then second field of every record, and so on.
+ * Each column starts with the length of every field in it (the field offset
+ * table), so a reader knows where every field starts and ends without looking
+ * for separators, and a field may even contain ';'.
+ *
+ * <pre>
+ * int      "ARCS"
+ * int      format version
+ * then segments, one after the other:
+ *   int       length of the rest of the segment
+ *   varint    record count
+ *   varint    column count (fields of the widest record)
+ *   varint... field count of each record
+ *   for each column:
+ *     varint... length of the field of each record that has this column
+ *     bytes     those fields back to back (UTF-8)
+ * </pre>
+ *
+ * A segment is only read once it is complete, a segment still being written
+ * (or torn by a crash) is left for the next read. Every group of appends is
+ * written as one segment.
+ */
+public final class ColumnarRecords {
+    public static final String EXTENSION = ".arcs";
+    public static final int HEADER_SIZE = 8;
+    private static final int MAGIC = 0x41524353; // "ARCS"
+    private static final int VERSION = 1;
+    // Records per segment when a whole text file is converted
+    private static final int CONVERT_SEGMENT_RECORDS = 64 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private ColumnarRecords() {
+    }
+
+    /**
+     * Gets the records of a segment as they would read in the text file.
+     */
+    public interface RecordHandler {
+        /**
+         * @param line the fields joined by ';', in line[0, length)
+         * @param fieldEnds where each field ends in line, the next one starts right after
+         * @param fieldCount number of fields, at least 1
+         */
+        void record(byte[] line, int length, int[] fieldEnds, int fieldCount);
+    }
+
+    public static boolean isColumnar(Path recordsPath) {
+        Path fileName = recordsPath.getFileName();
+        return fileName != null && fileName.toString().toLowerCase().endsWith(EXTENSION);
+    }
+
+    /**
+     * The fields of a text record: everything between ';', empty fields
+     * included, so that joining them with ';' gives the line back.
+     */
+    public static List<String> splitFields(String line) {
+        return Arrays.asList(line.split(";", -1));
+    }
+
+    /**
+     * Text appended to a text records file (lines, possibly starting with a
+     * line separator) as records: one per non-empty line.
+     */
+    public static List<List<String>> parseText(String text) {
+        List<List<String>> records = new ArrayList<>();
+        for (String line : text.split("\\R")) {
+            if (!line.isEmpty()) {
+                records.add(splitFields(line));
+            }
+        }
+        return records;
+    }
+
+    public static byte[] header() {
+        return ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).array();
+    }
+
+    /**
+     * One segment holding the records, length prefix included.
+     */
+    public static byte[] encodeSegment(List<List<String>> records) {
+        int columnCount = 0;
+        for (List<String> fields : records) {
+            columnCount = Math.max(columnCount, fields.size());
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        writeVarint(body, records.size());
+        writeVarint(body, columnCount);
+        for (List<String> fields : records) {
+            writeVarint(body, fields.size());
+        }
+        for (int column = 0; column < columnCount; column++) {
+            List<byte[]> values = new ArrayList<>();
+            for (List<String> fields : records) {
+                if (column < fields.size()) {
+                    values.add(fields.get(column).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+            for (byte[] value : values) {
+                writeVarint(body, value.length);
+            }
+            for (byte[] value : values) {
+                body.write(value, 0, value.length);
+            }
+        }
+        byte[] segment = new byte[Integer.BYTES + body.size()];
+        ByteBuffer.wrap(segment).putInt(body.size());
+        System.arraycopy(body.toByteArray(), 0, segment, Integer.BYTES, body.size());
+        return segment;
+    }
+
+    /**
+     * Hands every record of the complete segments in [from, size) to the
+     * handler, in file order.
+     *
+     * @param from 0 or the end of a segment returned by an earlier read
+     * @return where the first incomplete segment starts, or size
+     */
+    public static long read(FileChannel channel, long from, long size, RecordHandler handler) throws IOException {
+        long position = from;
+        if (position < HEADER_SIZE) {
+            if (size < HEADER_SIZE) {
+                return position; // Nothing written yet
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException("Not a columnar records file (version " + VERSION + ")");
+            }
+            position = HEADER_SIZE;
+        }
+
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+        byte[] line = new byte[256];
+        int[] fieldEnds = new int[16];
+        while (position + Integer.BYTES <= size) {
+            lengthBuffer.clear();
+            readFully(channel, lengthBuffer, position);
+            int bodyLength = lengthBuffer.getInt(0);
+            if (bodyLength < 0) {
+                throw new IOException("Corrupt segment at byte " + position);
+            }
+            if (position + Integer.BYTES + bodyLength > size) {
+                break; // Still being written
+            }
+            byte[] body = new byte[bodyLength];
+            readFully(channel, ByteBuffer.wrap(body), position + Integer.BYTES);
+            position += Integer.BYTES + bodyLength;
+
+            Cursor cursor = new Cursor(body);
+            int recordCount = cursor.readVarint();
+            int columnCount = cursor.readVarint();
+            int[] fieldCounts = new int[recordCount];
+            for (int r = 0; r < recordCount; r++) {
+                fieldCounts[r] = cursor.readVarint();
+            }
+            // Where each field of each column starts in the body, and how long it is
+            int[][] starts = new int[columnCount][];
+            int[][] lengths = new int[columnCount][];
+            for (int column = 0; column < columnCount; column++) {
+                int fields = 0;
+                for (int r = 0; r < recordCount; r++) {
+                    if (fieldCounts[r] > column) {
+                        fields++;
+                    }
+                }
+                lengths[column] = new int[fields];
+                for (int f = 0; f < fields; f++) {
+                    lengths[column][f] = cursor.readVarint();
+                }
+                starts[column] = new int[fields];
+                for (int f = 0; f < fields; f++) {
+                    starts[column][f] = cursor.position;
+                    cursor.skip(lengths[column][f]);
+                }
+            }
+
+            // Put each record back together, the columns are walked in step
+            int[] next = new int[columnCount];
+            for (int r = 0; r < recordCount; r++) {
+                int fieldCount = Math.max(1, fieldCounts[r]);
+                if (fieldEnds.length < fieldCount) {
+                    fieldEnds = new int[Math.max(fieldCount, fieldEnds.length * 2)];
+                }
+                int length = 0;
+                for (int column = 0; column < fieldCounts[r]; column++) {
+                    int f = next[column]++;
+                    int fieldLength = lengths[column][f];
+                    if (line.length < length + fieldLength + 1) {
+                        line = Arrays.copyOf(line, Math.max(length + fieldLength + 1, line.length * 2));
+                    }
+                    if (column > 0) {
+                        line[length++] = ';';
+                    }
+                    System.arraycopy(body, starts[column][f], line, length, fieldLength);
+                    length += fieldLength;
+                    fieldEnds[column] = length;
+                }
+                if (fieldCounts[r] == 0) {
+                    fieldEnds[0] = 0; // An empty line is one empty field
+                }
+                handler.record(line, length, fieldEnds, fieldCount);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Writes the records of a text file to a new columnar file.
+     *
+     * @return the number of records converted
+     */
+    public static long fromText(Path textFile, Path columnarFile) throws IOException {
+        long converted = 0;
+        try (BufferedReader reader = Files.newBufferedReader(textFile, StandardCharsets.UTF_8);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(columnarFile,
+                 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                 WRITE_BUFFER_SIZE)) {
+            out.write(header());
+            List<List<String>> records = new ArrayList<>(CONVERT_SEGMENT_RECORDS);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records.add(splitFields(line));
+                if (records.size() == CONVERT_SEGMENT_RECORDS) {
+                    out.write(encodeSegment(records));
+                    converted += records.size();
+                    records.clear();
+                }
+            }
+            if (!records.isEmpty()) {
+                out.write(encodeSegment(records));
+                converted += records.size();
+            }
+        }
+        return converted;
+    }
+
+    /**
+     * Writes the records of a columnar file to a new text file, one line each.
+     *
+     * @return the number of records converted
+     */
+    public static long toText(Path columnarFile, Path textFile) throws IOException {
+        byte[] separator = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+        long[] converted = new long[1];
+        try (FileChannel channel = FileChannel.open(columnarFile, StandardOpenOption.READ);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(textFile,
+                 StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE),
+                 WRITE_BUFFER_SIZE)) {
+            IOException[] failure = new IOException[1];
+            read(channel, 0, channel.size(), (line, length, fieldEnds, fieldCount) -> {
+                if (failure[0] != null) {
+                    return;
+                }
+                try {
+                    out.write(line, 0, length);
+                    out.write(separator);
+                    converted[0]++;
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+            });
+            if (failure[0] != null) {
+                throw failure[0];
+            }
+        }
+        return converted[0];
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Records file is shorter than expected");
+            }
+            position += read;
+        }
+    }
+
+    private static final class Cursor {
+        final byte[] data;
+        int position;
+
+        Cursor(byte[] data) {
+            this.data = data;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position >= data.length) {
+                    throw new IOException("Corrupt segment: truncated field table");
+                }
+                byte b = data[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Corrupt segment: bad varint");
+        }
+
+        void skip(int length) throws IOException {
+            if (length < 0 || position + length > data.length) {
+                throw new IOException("Corrupt segment: field past its end");
+            }
+            position += length;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package com.archiver.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * What each record field is: a file path, a URL or plain text.
+ *
+ * URLs and text are told apart by their shape alone. Fields shaped like a
+ * path are checked on disk in the background when their record is loaded or
+ * added, relative ones against the records folder, and the answer is kept
+ * together with the file's size and modification time. Showing a record then
+ * only looks the fields up here, it never waits on the filesystem (which on a
+ * network share costs milliseconds per probe).
+ *
+ * What is known is saved next to the records ("field-catalog") and loaded at
+ * startup, so only paths of records new since then are checked. Paths are
+ * checked again whenever their record is shown; the others only once they are
+ * older than FIELD_REFRESH_SECONDS (600 by default, 0 to never), a bounded
+ * batch at a time, so a large corpus is never probed all at once.
+ *
+ * Only path fields are kept, text and URL fields cost no memory.
+ */
+public class FieldCatalog implements RecordStore.Listener {
+    private static final Pattern URL = Pattern.compile("^https?://\\S+$", Pattern.CASE_INSENSITIVE);
+    // "/x", "C:\x", "C:/x" or "\\server\share"
+    private static final Pattern ABSOLUTE_PATH = Pattern.compile("^(/|[A-Za-z]:[\\\\/]|\\\\\\\\).+");
+    // "docs/x", "docs\x" or "x.pdf": a path only if it is there, see kindOf
+    private static final Pattern RELATIVE_PATH = Pattern.compile("^[^:*?\"<>|]*([/\\\\][^:*?\"<>|]+|\\.[A-Za-z][A-Za-z0-9]{0,4})$");
+    private static final long DEFAULT_REFRESH_SECONDS = 600;
+    // At most this many paths are checked again per refresh round, one round a minute at most
+    private static final int REFRESH_BATCH = 200;
+    private static final long MAX_ROUND_SECONDS = 60;
+    private static final String CATALOG_NAME = "field-catalog";
+    private static final int MAGIC = 0x41524643; // "ARFC"
+    private static final int VERSION = 1;
+
+    public enum Kind { PATH, URL, TEXT }
+
+    /**
+     * What the filesystem said about a path the last time it was checked.
+     */
+    public static final class FileInfo {
+        private final boolean regularFile;
+        private final long size;
+        private final long modified;
+        private final long checked;
+
+        FileInfo(boolean regularFile, long size, long modified, long checked) {
+            this.regularFile = regularFile;
+            this.size = size;
+            this.modified = modified;
+            this.checked = checked;
+        }
+
+        /** False for missing files and folders. */
+        public boolean isRegularFile() {
+            return regularFile;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /** Modification time in milliseconds. */
+        public long getModified() {
+            return modified;
+        }
+
+        boolean sameAs(FileInfo other) {
+            return other != null && regularFile == other.regularFile && size == other.size
+                && modified == other.modified;
+        }
+    }
+
+    private final Path folder;
+    private final Path catalogPath;
+    private final long refreshMillis;
+    private final Map<String, FileInfo> files = new ConcurrentHashMap<>();
+    // Whether files changed since the catalog file was written
+    private volatile boolean changed;
+    // One thread follows the records, the other checks what is being shown, so those never wait on a big load
+    private final ScheduledExecutorService loader = newThread("field-catalog-loader");
+    private final ScheduledExecutorService checker = newThread("field-catalog-checker");
+
+    /**
+     * Catalog of the records in the folder of recordsPath, saved there.
+     */
+    public static FieldCatalog forRecords(Path recordsPath) {
+        long refreshSeconds = DEFAULT_REFRESH_SECONDS;
+        String setting = System.getenv("FIELD_REFRESH_SECONDS");
+        if (setting != null && !setting.trim().isEmpty()) {
+            try {
+                refreshSeconds = Long.parseLong(setting.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid FIELD_REFRESH_SECONDS value, using " + refreshSeconds + ": " + setting);
+            }
+        }
+        Path folder = recordsPath.toAbsolutePath().getParent();
+        return new FieldCatalog(folder, folder.resolve(CATALOG_NAME), refreshSeconds);
+    }
+
+    FieldCatalog(Path folder, Path catalogPath, long refreshSeconds) {
+        this.folder = folder;
+        this.catalogPath = catalogPath;
+        this.refreshMillis = TimeUnit.SECONDS.toMillis(refreshSeconds);
+        // First in line, the records followed next only check paths it does not know
+        loader.execute(this::load);
+        if (refreshSeconds > 0) {
+            long round = Math.min(refreshSeconds, MAX_ROUND_SECONDS);
+            loader.scheduleWithFixedDelay(this::refreshStale, round, round, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Follows the records of store from now on, starting with those already
+     * loaded. A catalog can follow several stores, one per records shard.
+     */
+    public void follow(RecordStore store) {
+        store.addListener(this);
+        recordsReloaded(store.snapshot());
+    }
+
+    private static ScheduledExecutorService newThread(String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Kind of a field by its shape, without touching the filesystem. A PATH
+     * may still turn out to be missing, see {@link #getFileInfo}. Relative
+     * paths are only told apart by the catalog, see {@link #kindOf}.
+     */
+    public static Kind guessKind(String field) {
+        String trimmed = field.trim();
+        if (URL.matcher(trimmed).matches()) {
+            return Kind.URL;
+        }
+        if (ABSOLUTE_PATH.matcher(trimmed).matches()) {
+            return Kind.PATH;
+        }
+        return Kind.TEXT;
+    }
+
+    /**
+     * Kind of a field as far as the catalog knows: like {@link #guessKind},
+     * but a relative path is a PATH while it is not checked yet and once it
+     * was found to be a file in the records folder, TEXT otherwise.
+     */
+    public Kind kindOf(String field) {
+        Kind kind = guessKind(field);
+        if (kind != Kind.TEXT || !isRelativePath(field.trim())) {
+            return kind;
+        }
+        FileInfo info = getFileInfo(field);
+        return info == null || info.isRegularFile() ? Kind.PATH : Kind.TEXT;
+    }
+
+    private static boolean isRelativePath(String trimmed) {
+        return !trimmed.isEmpty() && RELATIVE_PATH.matcher(trimmed).matches();
+    }
+
+    private static boolean mayBePath(String trimmed) {
+        return ABSOLUTE_PATH.matcher(trimmed).matches()
+            || (!URL.matcher(trimmed).matches() && isRelativePath(trimmed));
+    }
+
+    /**
+     * The file a path field names, relative ones in the records folder.
+     */
+    public Path resolve(String field) {
+        Path path = Paths.get(field.trim());
+        return path.isAbsolute() || ABSOLUTE_PATH.matcher(field.trim()).matches() ? path : folder.resolve(path);
+    }
+
+    /**
+     * What is known of a path field, or null when it was not checked yet.
+     */
+    public FileInfo getFileInfo(String field) {
+        return files.get(field.trim());
+    }
+
+    /**
+     * Checks the path fields again in the background and runs onChange there
+     * when any of them was not known before or changed.
+     */
+    public void check(Collection<String> fields, Runnable onChange) {
+        List<String> paths = new ArrayList<>();
+        for (String field : fields) {
+            String trimmed = field.trim();
+            if (mayBePath(trimmed)) {
+                paths.add(trimmed);
+            }
+        }
+        if (paths.isEmpty()) {
+            return;
+        }
+        checker.execute(() -> {
+            boolean different = false;
+            for (String path : paths) {
+                FileInfo info = stat(path);
+                if (!info.sameAs(files.put(path, info))) {
+                    different = true;
+                }
+            }
+            if (different) {
+                changed = true;
+                onChange.run();
+            }
+        });
+    }
+
+    @Override
+    public void recordsAppended(RecordStore.Snapshot snapshot, int fromId) {
+        loader.execute(() -> addRecords(snapshot, fromId));
+    }
+
+    @Override
+    public void recordRetracted(RecordStore.Snapshot previous, int id) {
+        // The record comes back extended, its paths are checked again then if new
+    }
+
+    @Override
+    public void recordsReloaded(RecordStore.Snapshot snapshot) {
+        loader.execute(() -> addRecords(snapshot, 0));
+    }
+
+    private void addRecords(RecordStore.Snapshot snapshot, int fromId) {
+        for (int id = fromId; id < snapshot.size(); id++) {
+            // Fields come from the record's field table, the record is never split
+            for (int i = 0; i < snapshot.getFieldCount(id); i++) {
+                String trimmed = snapshot.getField(id, i).trim();
+                // Cheap test first, most fields are no path at all
+                if (trimmed.indexOf('/') < 0 && trimmed.indexOf('\\') < 0 && trimmed.indexOf('.') < 0) {
+                    continue;
+                }
+                if (!files.containsKey(trimmed) && mayBePath(trimmed)) {
+                    files.put(trimmed, stat(trimmed));
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks again the paths not checked for the refresh interval, the oldest
+     * first and at most REFRESH_BATCH of them.
+     */
+    private void refreshStale() {
+        long staleBefore = System.currentTimeMillis() - refreshMillis;
+        List<Map.Entry<String, FileInfo>> stale = new ArrayList<>();
+        for (Map.Entry<String, FileInfo> entry : files.entrySet()) {
+            if (entry.getValue().checked < staleBefore) {
+                stale.add(entry);
+            }
+        }
+        stale.sort((a, b) -> Long.compare(a.getValue().checked, b.getValue().checked));
+        for (Map.Entry<String, FileInfo> entry : stale.subList(0, Math.min(REFRESH_BATCH, stale.size()))) {
+            files.put(entry.getKey(), stat(entry.getKey()));
+        }
+        if (!stale.isEmpty()) {
+            changed = true;
+        }
+        save();
+    }
+
+    private FileInfo stat(String field) {
+        long now = System.currentTimeMillis();
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(resolve(field), BasicFileAttributes.class);
+            return new FileInfo(attributes.isRegularFile(), attributes.size(),
+                attributes.lastModifiedTime().toMillis(), now);
+        } catch (IOException | InvalidPathException | SecurityException e) {
+            return new FileInfo(false, 0, 0, now);
+        }
+    }
+
+    /**
+     * Writes what is known to the catalog file once the records queued so far
+     * are checked. Waits for it, meant for closing.
+     */
+    public void flush() {
+        try {
+            loader.submit(this::save).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("Error saving field catalog: " + e.getCause().getMessage());
+        }
+    }
+
+    private void save() {
+        if (!changed) {
+            return;
+        }
+        changed = false;
+        Path tempPath = catalogPath.resolveSibling(catalogPath.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempPath)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                List<Map.Entry<String, FileInfo>> entries = new ArrayList<>(files.entrySet());
+                out.writeInt(entries.size());
+                for (Map.Entry<String, FileInfo> entry : entries) {
+                    byte[] path = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(path.length);
+                    out.write(path);
+                    FileInfo info = entry.getValue();
+                    out.writeBoolean(info.regularFile);
+                    out.writeLong(info.size);
+                    out.writeLong(info.modified);
+                    out.writeLong(info.checked);
+                }
+            }
+            Files.move(tempPath, catalogPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // Kept in memory, written again with the next change
+            changed = true;
+            System.err.println("Error saving field catalog: " + e.getMessage());
+        }
+    }
+
+    private void load() {
+        if (!Files.isRegularFile(catalogPath)) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(catalogPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] path = new byte[in.readInt()];
+                in.readFully(path);
+                FileInfo info = new FileInfo(in.readBoolean(), in.readLong(), in.readLong(), in.readLong());
+                // Checked since, by a record shown before the load got here
+                files.putIfAbsent(new String(path, StandardCharsets.UTF_8), info);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Paths are checked again as their records are followed
+            System.err.println("Discarding unreadable field catalog: " + e.getMessage());
+            files.clear();
+        }
+    }
+
+    /**
+     * Number of path fields known.
+     */
+    public int size() {
+        return files.size();
+    }
+}
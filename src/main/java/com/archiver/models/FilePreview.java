@@ -0,0 +1,123 @@
+package com.archiver.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A piece of a text file, read for the preview pane.
+ *
+ * Only up to a given number of bytes are read, so selecting a result that
+ * points to a huge log does not load all of it into the heap; the rest is read
+ * piece by piece from {@link #getEndOffset()} as it is needed. A piece ends
+ * after its last line break when it has one, so a line (and a link in it) is
+ * not split between two pieces, and otherwise at the start of a UTF-8
+ * sequence, a character is never split in two.
+ */
+public class FilePreview {
+    private final String text;
+    private final long offset;
+    private final long bytesRead;
+    private final long fileSize;
+
+    private FilePreview(String text, long offset, long bytesRead, long fileSize) {
+        this.text = text;
+        this.offset = offset;
+        this.bytesRead = bytesRead;
+        this.fileSize = fileSize;
+    }
+
+    /**
+     * Reads at most maxBytes from the start of file, decoded as UTF-8.
+     */
+    public static FilePreview read(Path file, long maxBytes) throws IOException {
+        return read(file, 0, maxBytes);
+    }
+
+    /**
+     * Reads at most maxBytes of file from offset, which should be the end
+     * offset of the previous piece.
+     */
+    public static FilePreview read(Path file, long offset, long maxBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long fileSize = channel.size();
+            long available = Math.max(0, fileSize - offset);
+            int length = (int) Math.min(available, Math.min(maxBytes, Integer.MAX_VALUE - 8));
+            ByteBuffer buffer = ByteBuffer.allocate(length);
+            while (buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+                // Keep reading, the file may be read in several pieces
+            }
+            int end = buffer.position();
+            if (offset + end < fileSize) {
+                end = pieceEnd(buffer.array(), end);
+            }
+            return new FilePreview(new String(buffer.array(), 0, end, StandardCharsets.UTF_8), offset, end, fileSize);
+        }
+    }
+
+    /**
+     * Where to cut bytes[0, end): after the last line break in its second
+     * half, or else after the last complete UTF-8 sequence.
+     */
+    private static int pieceEnd(byte[] bytes, int end) {
+        for (int i = end - 1; i >= end / 2; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return completeSequenceEnd(bytes, end);
+    }
+
+    /**
+     * End of the last complete UTF-8 sequence in bytes[0, end).
+     */
+    private static int completeSequenceEnd(byte[] bytes, int end) {
+        int start = end;
+        // Walk back over continuation bytes (10xxxxxx) to the lead byte, at most 3 of them
+        while (start > 0 && end - start < 3 && (bytes[start - 1] & 0xC0) == 0x80) {
+            start--;
+        }
+        if (start == 0) {
+            return end;
+        }
+        int lead = bytes[start - 1] & 0xFF;
+        int sequenceLength;
+        if (lead < 0x80) {
+            return end; // ASCII, nothing was cut
+        } else if (lead >= 0xF0) {
+            sequenceLength = 4;
+        } else if (lead >= 0xE0) {
+            sequenceLength = 3;
+        } else if (lead >= 0xC0) {
+            sequenceLength = 2;
+        } else {
+            return end; // Not valid UTF-8 anyway
+        }
+        return end - (start - 1) < sequenceLength ? start - 1 : end;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    /** Offset where the next piece starts. */
+    public long getEndOffset() {
+        return offset + bytesRead;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /** True when the file goes on past what was read. */
+    public boolean isTruncated() {
+        return getEndOffset() < fileSize;
+    }
+}
@@ -0,0 +1,139 @@
+package com.archiver.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.archiver.utils.IntArrayList;
+
+/**
+ * What a search found, in the order found, kept compact until it is shown.
+ * Records of a loaded shard are kept as ids into the snapshot they were found
+ * in, records of a shard read from its file as their raw line. Only the
+ * records asked for are formatted, so a search with a million hits holds a
+ * few megabytes of ids instead of a million formatted strings.
+ *
+ * Not thread safe: a searching thread fills one and hands it over whole.
+ */
+public final class FoundRecords implements RecordStore.RecordVisitor {
+    // Hits in order, each run from one snapshot or all text
+    private final List<Run> runs = new ArrayList<>();
+    private int size;
+
+    /**
+     * Consecutive hits of one snapshot (by id), or of text: raw lines, or
+     * records already formatted by the search (ranked ones).
+     */
+    private static final class Run {
+        final RecordStore.Snapshot snapshot;
+        final boolean formatted;
+        final IntArrayList ids;
+        final List<String> texts;
+
+        Run(RecordStore.Snapshot snapshot) {
+            this.snapshot = snapshot;
+            this.formatted = true;
+            this.ids = new IntArrayList();
+            this.texts = null;
+        }
+
+        Run(boolean formatted) {
+            this.snapshot = null;
+            this.formatted = formatted;
+            this.ids = null;
+            this.texts = new ArrayList<>();
+        }
+
+        int size() {
+            return ids != null ? ids.size() : texts.size();
+        }
+
+        String format(int i) {
+            if (ids != null) {
+                return snapshot.formatRecord(ids.get(i));
+            }
+            return formatted ? texts.get(i) : SearchModel.formatLine(texts.get(i));
+        }
+    }
+
+    @Override
+    public void visit(RecordStore.Snapshot snapshot, int id) {
+        Run last = lastRun();
+        if (last == null || last.snapshot != snapshot) {
+            last = new Run(snapshot);
+            runs.add(last);
+        }
+        last.ids.add(id);
+        size++;
+    }
+
+    /** A raw line of a records file, formatted when it is shown. */
+    public void addLine(String line) {
+        addText(line, false);
+    }
+
+    /** A record the search already formatted. */
+    public void addFormatted(String record) {
+        addText(record, true);
+    }
+
+    private void addText(String text, boolean formatted) {
+        Run last = lastRun();
+        if (last == null || last.texts == null || last.formatted != formatted) {
+            last = new Run(formatted);
+            runs.add(last);
+        }
+        last.texts.add(text);
+        size++;
+    }
+
+    /**
+     * Appends every hit of other after these, in order.
+     */
+    public void addAll(FoundRecords other) {
+        for (Run run : other.runs) {
+            for (int i = 0; i < run.size(); i++) {
+                if (run.ids != null) {
+                    visit(run.snapshot, run.ids.get(i));
+                } else {
+                    addText(run.texts.get(i), run.formatted);
+                }
+            }
+        }
+    }
+
+    private Run lastRun() {
+        return runs.isEmpty() ? null : runs.get(runs.size() - 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        runs.clear();
+        size = 0;
+    }
+
+    /**
+     * Hits [from, to) formatted as the results show them.
+     */
+    public List<String> format(int from, int to) {
+        List<String> formatted = new ArrayList<>(Math.max(0, to - from));
+        int runStart = 0;
+        for (Run run : runs) {
+            int runEnd = runStart + run.size();
+            for (int i = Math.max(from, runStart); i < Math.min(to, runEnd); i++) {
+                formatted.add(run.format(i - runStart));
+            }
+            if (runEnd >= to) {
+                break;
+            }
+            runStart = runEnd;
+        }
+        return formatted;
+    }
+}
@@ -0,0 +1,263 @@
+package com.archiver.models;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import com.archiver.utils.IntArrayList;
+
+/**
+ * Full scan of the records used when the index cannot answer a query.
+ *
+ * The records are split into chunks matched in parallel on a fork-join pool:
+ * ranges of record ids of the resident {@link RecordStore}, or line-aligned
+ * memory-mapped ranges of the file when there is no store. Each chunk decodes
+ * only the records that match (store chunks decode nothing, they only collect
+ * record ids). Chunks are handed to the consumer strictly in
+ * file order as they complete, so the first hits can be shown while later
+ * chunks are still being scanned.
+ */
+public class ParallelRecordScanner {
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+    private static final long MAX_CHUNK_SIZE = 64L << 20;
+    private static final int ALIGN_BUFFER_SIZE = 8192;
+    private static final int MIN_CHUNK_RECORDS = 16 * 1024;
+    // Lines matched between two checks of the cancellation flag
+    private static final int CANCEL_CHECK_INTERVAL = 4096;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    private ParallelRecordScanner() {
+    }
+
+    /**
+     * Hands the ids of the records of the snapshot the matcher accepts to the
+     * visitor, in order, on the calling thread. Chunks only collect ids, the
+     * visitor reads whatever it needs of each record. Stops early once
+     * cancelled returns true.
+     */
+    public static void scan(RecordStore.Snapshot snapshot, QueryMatcher matcher, RecordStore.RecordVisitor visitor,
+                            BooleanSupplier cancelled) throws IOException {
+        int count = snapshot.size();
+        int chunkRecords = Math.max(MIN_CHUNK_RECORDS, count / (POOL.getParallelism() * 4));
+        List<ForkJoinTask<IntArrayList>> chunks = new ArrayList<>();
+        for (int start = 0; start < count; start += chunkRecords) {
+            int end = (int) Math.min(count, (long) start + chunkRecords);
+            int from = start;
+            chunks.add(POOL.submit(() -> {
+                IntArrayList ids = new IntArrayList();
+                for (int id = from; id < end; id++) {
+                    if (snapshot.matches(id, matcher)) {
+                        ids.add(id);
+                    }
+                    if ((id & (CANCEL_CHECK_INTERVAL - 1)) == 0 && cancelled.getAsBoolean()) {
+                        break;
+                    }
+                }
+                return ids;
+            }));
+        }
+        drainInOrder(chunks, ids -> {
+            for (int i = 0; i < ids.size() && !cancelled.getAsBoolean(); i++) {
+                visitor.visit(snapshot, ids.get(i));
+            }
+        }, cancelled);
+    }
+
+    /**
+     * Streams the raw lines of the file the matcher accepts to the consumer, in
+     * file order, on the calling thread. Stops early once cancelled returns true.
+     *
+     * @return the number of lines matched, matching or not
+     */
+    public static long scan(Path recordsPath, QueryMatcher matcher, Consumer<String> consumer,
+                            BooleanSupplier cancelled) throws IOException {
+        if (ColumnarRecords.isColumnar(recordsPath)) {
+            return scanColumnar(recordsPath, matcher, consumer, cancelled);
+        }
+        try (FileChannel channel = FileChannel.open(recordsPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size == 0) {
+                return 0;
+            }
+            // A few chunks per worker so an unlucky slow chunk does not stall the others
+            long chunkSize = size / (POOL.getParallelism() * 4L);
+            chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, chunkSize));
+
+            List<ChunkScan> scans = new ArrayList<>();
+            List<ForkJoinTask<List<String>>> chunks = new ArrayList<>();
+            long start = 0;
+            while (start < size) {
+                long end = start + chunkSize >= size ? size : nextLineStart(channel, start + chunkSize, size);
+                ChunkScan scan = new ChunkScan(channel, matcher, start, end, cancelled);
+                scans.add(scan);
+                chunks.add(POOL.submit(scan));
+                start = end;
+            }
+
+            drainInOrder(chunks, lines -> lines.forEach(consumer), cancelled);
+            long lines = 0;
+            for (ChunkScan scan : scans) {
+                lines += scan.lines;
+            }
+            return lines;
+        }
+    }
+
+    /**
+     * Segments of a columnar file come as whole records already, they are
+     * matched one after the other as they are read.
+     */
+    private static long scanColumnar(Path recordsPath, QueryMatcher matcher, Consumer<String> consumer,
+                                     BooleanSupplier cancelled) throws IOException {
+        long[] lines = new long[1];
+        try (FileChannel channel = FileChannel.open(recordsPath, StandardOpenOption.READ)) {
+            ColumnarRecords.read(channel, 0, channel.size(), (line, length, fieldEnds, fieldCount) -> {
+                if (cancelled.getAsBoolean()) {
+                    return;
+                }
+                lines[0]++;
+                if (matcher.matchesFolding(ByteBuffer.wrap(line), 0, length)) {
+                    consumer.accept(new String(line, 0, length, StandardCharsets.UTF_8));
+                }
+            });
+        }
+        return lines[0];
+    }
+
+    private static <T> void drainInOrder(List<ForkJoinTask<T>> chunks, Consumer<T> consumer,
+                                         BooleanSupplier cancelled) throws IOException {
+        try {
+            for (ForkJoinTask<T> chunk : chunks) {
+                if (cancelled.getAsBoolean()) {
+                    break;
+                }
+                consumer.accept(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Failed to scan records", e.getCause());
+        } finally {
+            for (ForkJoinTask<T> chunk : chunks) {
+                chunk.cancel(false);
+            }
+        }
+    }
+
+    private static class ChunkScan implements Callable<List<String>> {
+        private final FileChannel channel;
+        private final QueryMatcher matcher;
+        private final long start;
+        private final long end;
+        private final BooleanSupplier cancelled;
+        // Lines matched, read by the caller once the chunk is done
+        long lines;
+
+        ChunkScan(FileChannel channel, QueryMatcher matcher, long start, long end, BooleanSupplier cancelled) {
+            this.channel = channel;
+            this.matcher = matcher;
+            this.start = start;
+            this.end = end;
+            this.cancelled = cancelled;
+        }
+
+        @Override
+        public List<String> call() {
+            List<String> results = new ArrayList<>();
+            if (cancelled.getAsBoolean()) {
+                return results;
+            }
+            MappedByteBuffer buffer;
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            int limit = buffer.limit();
+            int lineStart = 0;
+            int linesSinceCheck = 0;
+            boolean skipLf = false;
+            for (int i = 0; i < limit; i++) {
+                byte b = buffer.get(i);
+                if (skipLf) {
+                    skipLf = false;
+                    if (b == '\n') {
+                        lineStart = i + 1;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    addIfMatches(buffer, lineStart, i, results);
+                    lines++;
+                    lineStart = i + 1;
+                    skipLf = b == '\r';
+                    if (++linesSinceCheck == CANCEL_CHECK_INTERVAL) {
+                        linesSinceCheck = 0;
+                        if (cancelled.getAsBoolean()) {
+                            return results;
+                        }
+                    }
+                }
+            }
+            // The last line of the file may have no terminator
+            if (lineStart < limit) {
+                addIfMatches(buffer, lineStart, limit, results);
+                lines++;
+            }
+            return results;
+        }
+
+        private void addIfMatches(ByteBuffer buffer, int from, int to, List<String> results) {
+            // The file has no folded search text stored, accented lines are folded here
+            if (matcher.matchesFolding(buffer, from, to)) {
+                byte[] line = new byte[to - from];
+                buffer.duplicate().position(from).get(line);
+                results.add(new String(line, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    /**
+     * Position right after the first line terminator at or after the given one,
+     * counting "\r\n" as a single terminator; the end of the range if there is none.
+     */
+    private static long nextLineStart(FileChannel channel, long position, long end) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(ALIGN_BUFFER_SIZE);
+        boolean afterCr = false;
+        while (position < end) {
+            buffer.clear();
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read && position < end; i++, position++) {
+                byte b = buffer.get(i);
+                if (afterCr) {
+                    return b == '\n' ? position + 1 : position;
+                }
+                if (b == '\n') {
+                    return position + 1;
+                }
+                afterCr = b == '\r';
+            }
+        }
+        return end;
+    }
+}
@@ -0,0 +1,330 @@
+package com.archiver.models;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import com.archiver.utils.TextFolding;
+
+/**
+ * Search term compiled once into an Aho-Corasick automaton over its folded
+ * words (lowercased, accents removed, see {@link TextFolding}).
+ *
+ * {@link #matches(CharSequence)} walks a line a single time, lowercasing it char
+ * by char, and answers whether every word occurs in it. That is the same
+ * AND-of-substrings test as lowercasing the line and calling
+ * {@code contains} once per word, without allocating anything per line. The
+ * line itself is expected to be folded already, as the records' search text
+ * in {@link RecordStore} is; {@link #matchesFolding(CharSequence)} folds it
+ * first when needed.
+ */
+public final class QueryMatcher {
+    private static final int ROOT = 0;
+    private static final QueryMatcher EMPTY = new QueryMatcher(Collections.emptyList());
+    // String.toLowerCase maps chars one to one except for dotted capital I, final
+    // sigma and the Turkish, Azeri and Lithuanian rules
+    private static final boolean LOCALE_SENSITIVE_LOWER_CASE =
+        Set.of("tr", "az", "lt").contains(Locale.getDefault().getLanguage());
+
+    private final List<String> words;
+    private final long allWordsMask;
+    // Compact alphabet: every distinct char of the words, sorted; anything else maps to class 0
+    private final char[] alphabet;
+    private final int[] asciiClasses = new int[128];
+    private final int classCount;
+    // transitions[state * classCount + class], with failure links already folded in
+    private final int[] transitions;
+    // Bit i is set when word i ends at this state, directly or through a failure link
+    private final long[] outputs;
+
+    private QueryMatcher(List<String> words) {
+        this.words = Collections.unmodifiableList(words);
+        this.allWordsMask = words.size() >= 64 ? -1L : (1L << words.size()) - 1;
+
+        // Only the first 64 words fit in the output masks, the rest are checked one by one
+        List<String> automatonWords = words.subList(0, Math.min(words.size(), 64));
+        StringBuilder chars = new StringBuilder();
+        for (String word : automatonWords) {
+            chars.append(word);
+        }
+        char[] sorted = chars.toString().toCharArray();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[distinct++] = sorted[i];
+            }
+        }
+        this.alphabet = Arrays.copyOf(sorted, distinct);
+        this.classCount = distinct + 1;
+        for (int i = 0; i < alphabet.length; i++) {
+            if (alphabet[i] < 128) {
+                asciiClasses[alphabet[i]] = i + 1;
+            }
+        }
+
+        // Build the trie
+        int maxStates = chars.length() + 1;
+        int[] trie = new int[maxStates * classCount];
+        Arrays.fill(trie, -1);
+        long[] stateOutputs = new long[maxStates];
+        int stateCount = 1;
+        for (int w = 0; w < automatonWords.size(); w++) {
+            int state = ROOT;
+            String word = automatonWords.get(w);
+            for (int i = 0; i < word.length(); i++) {
+                int slot = state * classCount + classOf(word.charAt(i));
+                if (trie[slot] < 0) {
+                    trie[slot] = stateCount++;
+                }
+                state = trie[slot];
+            }
+            stateOutputs[state] |= 1L << w;
+        }
+
+        // Breadth-first pass turning the trie into a DFA
+        int[] failure = new int[stateCount];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < classCount; c++) {
+            int next = trie[c];
+            if (next < 0) {
+                trie[c] = ROOT;
+            } else {
+                failure[next] = ROOT;
+                queue.add(next);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            stateOutputs[state] |= stateOutputs[failure[state]];
+            for (int c = 0; c < classCount; c++) {
+                int slot = state * classCount + c;
+                int next = trie[slot];
+                int fallback = trie[failure[state] * classCount + c];
+                if (next < 0) {
+                    trie[slot] = fallback;
+                } else {
+                    failure[next] = fallback;
+                    queue.add(next);
+                }
+            }
+        }
+        // Class 0 (chars outside the words) always leads back to the root
+        for (int state = 0; state < stateCount; state++) {
+            trie[state * classCount] = ROOT;
+        }
+
+        this.transitions = Arrays.copyOf(trie, stateCount * classCount);
+        this.outputs = Arrays.copyOf(stateOutputs, stateCount);
+    }
+
+    /**
+     * Compiles a search term the way {@link SearchModel} splits it: folded,
+     * split on single spaces, ignoring blank words.
+     */
+    public static QueryMatcher compile(String searchTerm) {
+        Set<String> words = new LinkedHashSet<>();
+        for (String word : TextFolding.fold(searchTerm).split(" ")) {
+            if (!word.trim().equals("")) {
+                words.add(word);
+            }
+        }
+        if (words.isEmpty()) {
+            return EMPTY;
+        }
+        return new QueryMatcher(new ArrayList<>(words));
+    }
+
+    /**
+     * Distinct folded words of the search term, in the order typed.
+     */
+    public List<String> getWords() {
+        return words;
+    }
+
+    public boolean isEmpty() {
+        return words.isEmpty();
+    }
+
+    /**
+     * Whether the line contains every word, ignoring case.
+     */
+    public boolean matches(CharSequence line) {
+        if (words.isEmpty()) {
+            return true;
+        }
+        if (LOCALE_SENSITIVE_LOWER_CASE || words.size() > 64) {
+            return matchesLowerCased(line.toString().toLowerCase());
+        }
+
+        long found = 0;
+        int state = ROOT;
+        int length = line.length();
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c == '\u0130' || c == '\u03A3') {
+                // Dotted capital I and sigma lowercase depending on context, let String do it
+                return matchesLowerCased(line.toString().toLowerCase());
+            }
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+                int lower = Character.toLowerCase(Character.toCodePoint(c, line.charAt(++i)));
+                if (Character.isSupplementaryCodePoint(lower)) {
+                    state = step(state, Character.highSurrogate(lower));
+                    found |= outputs[state];
+                    state = step(state, Character.lowSurrogate(lower));
+                } else {
+                    state = step(state, (char) lower);
+                }
+            } else {
+                state = step(state, Character.toLowerCase(c));
+            }
+            found |= outputs[state];
+            if (found == allWordsMask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Same test as {@link #matches(CharSequence)} over the UTF-8 bytes
+     * [from, to) of a buffer, decoding on the fly so lines that do not match are
+     * never turned into Strings. Malformed input is decoded with replacement
+     * chars first, like the reader used by the plain scan.
+     */
+    public boolean matches(ByteBuffer utf8, int from, int to) {
+        if (words.isEmpty()) {
+            return true;
+        }
+        if (LOCALE_SENSITIVE_LOWER_CASE || words.size() > 64) {
+            return matches(decode(utf8, from, to));
+        }
+
+        long found = 0;
+        int state = ROOT;
+        int i = from;
+        while (i < to) {
+            int b = utf8.get(i);
+            int codePoint;
+            if (b >= 0) {
+                codePoint = b;
+                i++;
+            } else if ((b & 0xE0) == 0xC0 && i + 1 < to && isContinuation(utf8.get(i + 1))) {
+                codePoint = ((b & 0x1F) << 6) | (utf8.get(i + 1) & 0x3F);
+                if (codePoint < 0x80) {
+                    return matches(decode(utf8, from, to));
+                }
+                i += 2;
+            } else if ((b & 0xF0) == 0xE0 && i + 2 < to
+                    && isContinuation(utf8.get(i + 1)) && isContinuation(utf8.get(i + 2))) {
+                codePoint = ((b & 0x0F) << 12) | ((utf8.get(i + 1) & 0x3F) << 6) | (utf8.get(i + 2) & 0x3F);
+                if (codePoint < 0x800 || Character.isSurrogate((char) codePoint)) {
+                    return matches(decode(utf8, from, to));
+                }
+                i += 3;
+            } else if ((b & 0xF8) == 0xF0 && i + 3 < to && isContinuation(utf8.get(i + 1))
+                    && isContinuation(utf8.get(i + 2)) && isContinuation(utf8.get(i + 3))) {
+                codePoint = ((b & 0x07) << 18) | ((utf8.get(i + 1) & 0x3F) << 12)
+                    | ((utf8.get(i + 2) & 0x3F) << 6) | (utf8.get(i + 3) & 0x3F);
+                if (codePoint < 0x10000 || codePoint > Character.MAX_CODE_POINT) {
+                    return matches(decode(utf8, from, to));
+                }
+                i += 4;
+            } else {
+                return matches(decode(utf8, from, to));
+            }
+
+            if (codePoint == '\u0130' || codePoint == '\u03A3') {
+                return matches(decode(utf8, from, to));
+            }
+            int lower = Character.toLowerCase(codePoint);
+            if (Character.isSupplementaryCodePoint(lower)) {
+                state = step(state, Character.highSurrogate(lower));
+                found |= outputs[state];
+                state = step(state, Character.lowSurrogate(lower));
+            } else {
+                state = step(state, (char) lower);
+            }
+            found |= outputs[state];
+            if (found == allWordsMask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the line contains every word once folded. Only lines with
+     * non-ASCII chars that do not match as they are get folded.
+     */
+    public boolean matchesFolding(CharSequence line) {
+        return matches(line) || (!TextFolding.isAscii(line) && matches(TextFolding.fold(line.toString())));
+    }
+
+    /**
+     * Same as {@link #matchesFolding(CharSequence)} over UTF-8 bytes [from, to).
+     */
+    public boolean matchesFolding(ByteBuffer utf8, int from, int to) {
+        if (matches(utf8, from, to)) {
+            return true;
+        }
+        for (int i = from; i < to; i++) {
+            if (utf8.get(i) < 0) {
+                return matches(TextFolding.fold(decode(utf8, from, to)));
+            }
+        }
+        return false;
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    private static String decode(ByteBuffer utf8, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = utf8.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private boolean matchesLowerCased(String lowerCased) {
+        if (words.size() > 64) {
+            for (String word : words) {
+                if (!lowerCased.contains(word)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        long found = 0;
+        int state = ROOT;
+        for (int i = 0; i < lowerCased.length(); i++) {
+            state = step(state, lowerCased.charAt(i));
+            found |= outputs[state];
+            if (found == allWordsMask) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private int step(int state, char c) {
+        return transitions[state * classCount + classOf(c)];
+    }
+
+    private int classOf(char c) {
+        if (c < 128) {
+            return asciiClasses[c];
+        }
+        int position = Arrays.binarySearch(alphabet, c);
+        return position < 0 ? 0 : position + 1;
+    }
+}
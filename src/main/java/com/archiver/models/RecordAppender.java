@@ -0,0 +1,269 @@
+package com.archiver.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Appends records to the records file from a single writer thread that keeps
+ * the file open and commits queued records in groups.
+ *
+ * Whatever is queued while a group is being written goes out together in the
+ * next one: one journal write and sync, then one write to the records file.
+ * The journal is always synced before the records file is written, so a crash
+ * never leaves the file with an add the backups do not have. When the records
+ * file itself is synced depends on the {@link SyncPolicy}.
+ *
+ * The future returned by {@link #append(String)} completes once the record is
+ * written, and synced if the policy syncs every record.
+ *
+ * A {@link ColumnarRecords} file gets each group as one segment instead of
+ * the text itself.
+ */
+public class RecordAppender implements AutoCloseable {
+    // Upper bound of the bytes written in one group
+    private static final int MAX_GROUP_BYTES = 4 << 20;
+    // Queued by close; the writer stops once it gets there
+    private static final PendingRecord END = new PendingRecord(new byte[0]);
+
+    /**
+     * When the records file is forced to disk.
+     */
+    public enum SyncPolicy {
+        /** Before any record of a group is reported as written. */
+        EVERY_RECORD,
+        /** At most every sync interval, and on close. */
+        INTERVAL,
+        /** Only when the appender is closed. */
+        ON_CLOSE
+    }
+
+    private final FileChannel channel;
+    private final boolean columnar;
+    private final BackupJournal journal;
+    private final SyncPolicy syncPolicy;
+    private final long syncIntervalNanos;
+    private final BlockingQueue<PendingRecord> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private boolean closed; // guarded by queue
+    private boolean unsynced;
+    private long lastSync = System.nanoTime();
+
+    /**
+     * @param journal journal every append is recorded in first, or null for none
+     * @param syncIntervalMillis only used with {@link SyncPolicy#INTERVAL}
+     */
+    public RecordAppender(Path recordsPath, BackupJournal journal, SyncPolicy syncPolicy, long syncIntervalMillis)
+            throws IOException {
+        this.channel = FileChannel.open(recordsPath,
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.columnar = ColumnarRecords.isColumnar(recordsPath);
+        this.journal = journal;
+        this.syncPolicy = syncPolicy;
+        this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, syncIntervalMillis));
+        this.writer = new Thread(this::writeLoop, "records-appender");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Reads the policy from the RECORDS_FSYNC environment variable: "record"
+     * (the default), "close", or a number of milliseconds between syncs.
+     */
+    public static RecordAppender open(Path recordsPath, BackupJournal journal) throws IOException {
+        String setting = System.getenv("RECORDS_FSYNC");
+        if (setting == null || setting.trim().isEmpty() || setting.trim().equalsIgnoreCase("record")) {
+            return new RecordAppender(recordsPath, journal, SyncPolicy.EVERY_RECORD, 0);
+        }
+        if (setting.trim().equalsIgnoreCase("close")) {
+            return new RecordAppender(recordsPath, journal, SyncPolicy.ON_CLOSE, 0);
+        }
+        try {
+            return new RecordAppender(recordsPath, journal, SyncPolicy.INTERVAL, Long.parseLong(setting.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid RECORDS_FSYNC value, syncing every record: " + setting);
+            return new RecordAppender(recordsPath, journal, SyncPolicy.EVERY_RECORD, 0);
+        }
+    }
+
+    /**
+     * Queues text to be appended as is, including its line separator.
+     */
+    public CompletableFuture<Void> append(String text) {
+        PendingRecord record = new PendingRecord(text.getBytes(StandardCharsets.UTF_8));
+        synchronized (queue) {
+            if (closed) {
+                record.done.completeExceptionally(new IOException("Records appender is closed"));
+            } else {
+                queue.add(record);
+            }
+        }
+        return record.done;
+    }
+
+    /**
+     * Writes everything still queued, syncs the file and stops the writer.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (queue) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // Not an interrupt: it would close the channel in the middle of a write
+            queue.add(END);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (unsynced) {
+                channel.force(false);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeLoop() {
+        List<PendingRecord> group = new ArrayList<>();
+        boolean ending = false;
+        while (!ending) {
+            try {
+                PendingRecord first;
+                if (syncPolicy == SyncPolicy.INTERVAL && unsynced) {
+                    // Wake up in time for the next sync even when nothing else arrives
+                    long wait = syncIntervalNanos - (System.nanoTime() - lastSync);
+                    first = queue.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                } else {
+                    first = queue.take();
+                }
+                if (first == END) {
+                    break;
+                }
+                if (first != null) {
+                    group.add(first);
+                    ending = drainGroup(group, first.data.length);
+                    writeGroup(group);
+                    group.clear();
+                }
+                syncIfDue();
+            } catch (InterruptedException e) {
+                // Only close stops the writer, queued records must still be written
+            }
+        }
+    }
+
+    /**
+     * Moves queued records into the group up to the size limit.
+     *
+     * @return true when the end marker was reached
+     */
+    private boolean drainGroup(List<PendingRecord> group, long bytes) {
+        PendingRecord next;
+        while (bytes < MAX_GROUP_BYTES && (next = queue.poll()) != null) {
+            if (next == END) {
+                return true;
+            }
+            group.add(next);
+            bytes += next.data.length;
+        }
+        return false;
+    }
+
+    private void writeGroup(List<PendingRecord> group) {
+        try {
+            List<byte[]> appends = new ArrayList<>(group.size());
+            if (columnar) {
+                appends.add(encodeSegment(group));
+            } else {
+                for (PendingRecord record : group) {
+                    appends.add(record.data);
+                }
+            }
+            ByteBuffer[] buffers = new ByteBuffer[appends.size()];
+            long remaining = 0;
+            for (int i = 0; i < appends.size(); i++) {
+                buffers[i] = ByteBuffer.wrap(appends.get(i));
+                remaining += buffers[i].remaining();
+            }
+            if (journal != null) {
+                journal.recordAppends(appends);
+            }
+            // One gathering write for the whole group
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+            unsynced = true;
+            if (syncPolicy == SyncPolicy.EVERY_RECORD) {
+                sync();
+            }
+            for (PendingRecord record : group) {
+                record.done.complete(null);
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Error appending records: " + e.getMessage());
+            for (PendingRecord record : group) {
+                record.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * The group's lines as one segment, after the file header when the file
+     * is still empty.
+     */
+    private byte[] encodeSegment(List<PendingRecord> group) throws IOException {
+        List<List<String>> records = new ArrayList<>();
+        for (PendingRecord record : group) {
+            records.addAll(ColumnarRecords.parseText(new String(record.data, StandardCharsets.UTF_8)));
+        }
+        byte[] segment = ColumnarRecords.encodeSegment(records);
+        if (channel.size() > 0) {
+            return segment;
+        }
+        byte[] header = ColumnarRecords.header();
+        byte[] data = new byte[header.length + segment.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(segment, 0, data, header.length, segment.length);
+        return data;
+    }
+
+    private void syncIfDue() {
+        if (syncPolicy == SyncPolicy.INTERVAL && unsynced && System.nanoTime() - lastSync >= syncIntervalNanos) {
+            try {
+                sync();
+            } catch (IOException e) {
+                System.err.println("Error syncing records file: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        channel.force(false);
+        unsynced = false;
+        lastSync = System.nanoTime();
+    }
+
+    private static class PendingRecord {
+        final byte[] data;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        PendingRecord(byte[] data) {
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,525 @@
+package com.archiver.models;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+
+import com.archiver.utils.IntArrayList;
+
+/**
+ * Term to record inverted index over the {@link RecordStore}, persisted next
+ * to the records file as "&lt;records file&gt;.idx".
+ *
+ * Records are numbered in file order. Their search text (lowercased, accents
+ * removed) is split on spaces, tabs and the field delimiter; each resulting
+ * term keeps a posting list of the record ids it occurs in. A query word (which never contains a space) can
+ * only match inside one of those terms, so the records containing a word are
+ * the union of the postings of every term that contains it. This keeps the
+ * same substring semantics as {@link SearchModel#containsSearchTerm(String)}
+ * while only touching the vocabulary instead of every record. Those terms are
+ * found through a {@link TrigramIndex} of the vocabulary, built the first time
+ * it is needed; only words shorter than a trigram go through every term. An
+ * index opened for one command line run checks every term for its first few
+ * words instead, which is cheaper than building the trigrams for them.
+ *
+ * For fuzzy searches each word may come with expansions: word-like vocabulary
+ * terms a few edits away from it, found through the same trigrams. A record
+ * matches the word when one of its terms contains the word or is one of its
+ * expansions.
+ *
+ * The index follows the store as a listener. The snapshot on disk remembers
+ * how much of the records file it covers; records loaded after that are
+ * tokenized when the index is opened, and the snapshot is rewritten only once
+ * enough unsaved data accumulates.
+ */
+public class RecordIndex implements RecordStore.Listener {
+    private static final int MAGIC = 0x41524958; // "ARIX"
+    private static final int VERSION = 5;
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int BUFFER_SIZE = 1 << 16;
+    // Rewrite the snapshot once this many bytes were indexed since the last save
+    private static final long SNAPSHOT_THRESHOLD = 8L * 1024 * 1024;
+
+    private final RecordStore store;
+    private final Path indexPath;
+
+    private final Map<String, IntArrayList> postings = new HashMap<>();
+    // Every term, null until the first search needs it
+    private TrigramIndex trigrams;
+    // An index that does not follow the store serves a few searches of one run; building the
+    // trigrams costs more than checking every term for that many words
+    private static final int UNFOLLOWED_SCANS = 8;
+    private final boolean follow;
+    private int vocabularyScans;
+    private int indexedCount;
+    // The records the postings cover
+    private RecordStore.Snapshot indexedSnapshot;
+    private long indexedLength;
+    private long persistedLength;
+
+    private RecordIndex(RecordStore store, boolean follow) {
+        this.store = store;
+        this.follow = follow;
+        Path recordsPath = store.getRecordsPath();
+        this.indexPath = recordsPath.resolveSibling(recordsPath.getFileName() + INDEX_SUFFIX);
+    }
+
+    /**
+     * Opens the index for a loaded store, reusing the snapshot when it is still
+     * valid, and keeps it in sync with the store from then on.
+     */
+    public static RecordIndex open(RecordStore store) throws IOException {
+        return open(store, true);
+    }
+
+    /**
+     * @param follow keep the index in sync with the store; off when the store
+     *        is only searched as it was loaded (one command line run)
+     */
+    public static RecordIndex open(RecordStore store, boolean follow) throws IOException {
+        RecordIndex index = new RecordIndex(store, follow);
+        synchronized (index) {
+            if (follow) {
+                store.addListener(index);
+            }
+            if (index.load()) {
+                index.indexNewRecords(store.snapshot());
+            } else {
+                index.rebuild(store.snapshot());
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Whether a query word can be answered from the index. Words containing one
+     * of the term separators may match across terms and need a full scan.
+     */
+    public static boolean canAnswer(String word) {
+        if (word.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (isSeparator(word.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands the records containing every word to the visitor by id, in file
+     * order, stopping early once cancelled returns true. A record also matches
+     * a word when it has one of the word's expansions as a term.
+     *
+     * The records are those of the snapshot the index last indexed, which
+     * lags behind the store while appended records are being indexed.
+     *
+     * @param words lowercased query words
+     * @param expansions terms accepted for each word, or null for none
+     * @return the snapshot searched, or null when the words cannot be answered
+     *         from the index and nothing was visited
+     */
+    public RecordStore.Snapshot search(List<String> words, List<List<String>> expansions,
+            RecordStore.RecordVisitor visitor, BooleanSupplier cancelled) {
+        if (words.isEmpty()) {
+            return null;
+        }
+        for (String word : words) {
+            if (!canAnswer(word)) {
+                return null;
+            }
+        }
+        int[] ids;
+        RecordStore.Snapshot snapshot;
+        synchronized (this) {
+            ids = lookup(words, expansions);
+            // The store may have published newer records already, the ids are only complete for this one
+            snapshot = indexedSnapshot;
+        }
+        for (int i = 0; i < ids.length && !cancelled.getAsBoolean(); i++) {
+            if (ids[i] < snapshot.size()) {
+                visitor.visit(snapshot, ids[i]);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Number of records containing each word, for ranking.
+     *
+     * @param words lowercased query words
+     * @param expansions terms accepted for each word, or null for none
+     * @return one count per word, or null when the words cannot be answered from the index
+     */
+    public int[] documentFrequencies(List<String> words, List<List<String>> expansions) {
+        for (String word : words) {
+            if (!canAnswer(word)) {
+                return null;
+            }
+        }
+        int[] frequencies = new int[words.size()];
+        synchronized (this) {
+            for (int w = 0; w < words.size(); w++) {
+                // A record holding several terms with the word still counts once
+                BitSet records = new BitSet(indexedCount);
+                for (IntArrayList list : postingsFor(words.get(w), expansions != null ? expansions.get(w) : null)) {
+                    for (int i = 0; i < list.size(); i++) {
+                        records.set(list.get(i));
+                    }
+                }
+                frequencies[w] = records.cardinality();
+            }
+        }
+        return frequencies;
+    }
+
+    /**
+     * Vocabulary terms within a few edits of word (one for words of four to
+     * six chars, two for longer ones), nearest first. Shorter words are only
+     * ever matched as typed.
+     */
+    public synchronized List<String> expand(String word, int limit) {
+        int maxDistance = word.length() < 4 ? 0 : word.length() <= 6 ? 1 : 2;
+        if (maxDistance == 0) {
+            return new ArrayList<>();
+        }
+        return trigrams().nearest(word, maxDistance, limit, RecordIndex::isWord);
+    }
+
+    private TrigramIndex trigrams() {
+        if (trigrams == null) {
+            trigrams = new TrigramIndex();
+            for (String term : postings.keySet()) {
+                trigrams.add(term);
+            }
+        }
+        return trigrams;
+    }
+
+    /**
+     * Terms worth correcting typos towards: letters only, of a typing length.
+     * Paths, URLs and numbers are left out.
+     */
+    private static boolean isWord(String term) {
+        if (term.length() < 3 || term.length() > 32) {
+            return false;
+        }
+        for (int i = 0; i < term.length(); i++) {
+            char c = term.charAt(i);
+            if (!Character.isLetter(c) && c != '-') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int getRecordCount() {
+        return indexedCount;
+    }
+
+    public synchronized int getTermCount() {
+        return postings.size();
+    }
+
+    @Override
+    public synchronized void recordsAppended(RecordStore.Snapshot snapshot, int fromId) {
+        indexNewRecords(snapshot);
+        if (indexedLength - persistedLength >= SNAPSHOT_THRESHOLD) {
+            save(snapshot);
+        }
+    }
+
+    @Override
+    public synchronized void recordRetracted(RecordStore.Snapshot previous, int id) {
+        if (id >= indexedCount) {
+            return;
+        }
+        for (String term : tokenize(previous.getSearchText(id))) {
+            IntArrayList list = postings.get(term);
+            if (list != null && !list.isEmpty() && list.last() == id) {
+                list.removeLast();
+                if (list.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+        indexedCount = id;
+        // Listeners run inside the refresh, this is the snapshot published without the record
+        indexedSnapshot = store.snapshot();
+    }
+
+    @Override
+    public synchronized void recordsReloaded(RecordStore.Snapshot snapshot) {
+        rebuild(snapshot);
+    }
+
+    private void rebuild(RecordStore.Snapshot snapshot) {
+        postings.clear();
+        trigrams = null;
+        indexedCount = 0;
+        persistedLength = 0;
+        indexNewRecords(snapshot);
+        save(snapshot);
+    }
+
+    private void indexNewRecords(RecordStore.Snapshot snapshot) {
+        for (int id = indexedCount; id < snapshot.size(); id++) {
+            for (String term : tokenize(snapshot.getSearchText(id))) {
+                IntArrayList list = postings.get(term);
+                if (list == null) {
+                    list = new IntArrayList(2);
+                    postings.put(term, list);
+                    if (trigrams != null) {
+                        trigrams.add(term);
+                    }
+                }
+                if (list.isEmpty() || list.last() != id) {
+                    list.add(id);
+                }
+            }
+        }
+        indexedCount = Math.max(indexedCount, snapshot.size());
+        indexedLength = snapshot.getFileLength();
+        indexedSnapshot = snapshot;
+    }
+
+    private int[] lookup(List<String> words, List<List<String>> expansions) {
+        // Resolve every word to the posting lists of the terms containing it
+        List<List<IntArrayList>> perWord = new ArrayList<>();
+        for (int w = 0; w < words.size(); w++) {
+            List<IntArrayList> lists = postingsFor(words.get(w), expansions != null ? expansions.get(w) : null);
+            if (lists.isEmpty()) {
+                return new int[0];
+            }
+            perWord.add(lists);
+        }
+
+        // Intersect the most selective words first so the candidate set shrinks early
+        perWord.sort(Comparator.comparingLong(RecordIndex::postingCount));
+
+        BitSet matches = null;
+        for (List<IntArrayList> lists : perWord) {
+            BitSet wordMatches = new BitSet(indexedCount);
+            for (IntArrayList list : lists) {
+                for (int i = 0; i < list.size(); i++) {
+                    int id = list.get(i);
+                    if (matches == null || matches.get(id)) {
+                        wordMatches.set(id);
+                    }
+                }
+            }
+            matches = wordMatches;
+            if (matches.isEmpty()) {
+                return new int[0];
+            }
+        }
+        return matches.stream().toArray();
+    }
+
+    /**
+     * Posting lists of the terms containing word, then of its expansions.
+     */
+    private List<IntArrayList> postingsFor(String word, List<String> expansions) {
+        List<IntArrayList> lists = new ArrayList<>();
+        Set<String> containing = null;
+        if (follow || trigrams != null || ++vocabularyScans > UNFOLLOWED_SCANS) {
+            containing = trigrams().containing(word);
+        }
+        if (containing == null) {
+            // Too short to narrow down by trigrams (or no trigrams yet), every term is checked
+            for (Map.Entry<String, IntArrayList> entry : postings.entrySet()) {
+                if (entry.getKey().contains(word)) {
+                    lists.add(entry.getValue());
+                }
+            }
+        } else {
+            for (String term : containing) {
+                IntArrayList list = postings.get(term);
+                // Retracted terms stay in the trigrams
+                if (list != null) {
+                    lists.add(list);
+                }
+            }
+        }
+        if (expansions != null) {
+            for (String term : expansions) {
+                IntArrayList list = postings.get(term);
+                // Terms containing the word are already in
+                if (list != null && !term.contains(word)) {
+                    lists.add(list);
+                }
+            }
+        }
+        return lists;
+    }
+
+    private static long postingCount(List<IntArrayList> lists) {
+        long count = 0;
+        for (IntArrayList list : lists) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    private static Set<String> tokenize(String line) {
+        Set<String> terms = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= line.length(); i++) {
+            boolean separator = i == line.length() || isSeparator(line.charAt(i));
+            if (separator) {
+                if (start >= 0) {
+                    terms.add(line.substring(start, i));
+                    start = -1;
+                }
+            } else if (start < 0) {
+                start = i;
+            }
+        }
+        return terms;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '\t' || c == ';';
+    }
+
+    /**
+     * Writes the postings of every complete record. An unterminated last line
+     * can still change, so it is left out and indexed again on the next start.
+     */
+    private void save(RecordStore.Snapshot snapshot) {
+        int savedCount = Math.min(indexedCount, snapshot.size());
+        long savedLength = snapshot.getFileLength();
+        if (snapshot.isLastRecordOpen() && savedCount == snapshot.size() && savedCount > 0) {
+            savedCount--;
+            savedLength -= snapshot.getRecordLength(savedCount);
+        }
+
+        Path tempPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try {
+            long checksum = snapshot.getChecksum(savedCount);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tempPath), BUFFER_SIZE))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(savedLength);
+                out.writeLong(checksum);
+                out.writeInt(savedCount);
+
+                int termCount = 0;
+                for (IntArrayList list : postings.values()) {
+                    if (list.get(0) < savedCount) {
+                        termCount++;
+                    }
+                }
+                out.writeInt(termCount);
+                for (Map.Entry<String, IntArrayList> entry : postings.entrySet()) {
+                    IntArrayList list = entry.getValue();
+                    int size = list.size();
+                    while (size > 0 && list.get(size - 1) >= savedCount) {
+                        size--;
+                    }
+                    if (size == 0) {
+                        continue;
+                    }
+                    // Not writeUTF: it cannot write a term over 64 KB (a pasted blob with no separator)
+                    byte[] term = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    writeVarLong(out, term.length);
+                    out.write(term);
+                    writeVarLong(out, size);
+                    int previousId = 0;
+                    for (int i = 0; i < size; i++) {
+                        writeVarLong(out, list.get(i) - previousId);
+                        previousId = list.get(i);
+                    }
+                }
+            }
+            Files.move(tempPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            persistedLength = savedLength;
+        } catch (IOException e) {
+            // The in-memory index stays usable, it is just rebuilt on the next start
+            System.err.println("Error saving records index: " + e.getMessage());
+        }
+    }
+
+    private boolean load() {
+        if (!Files.isRegularFile(indexPath)) {
+            return false;
+        }
+        RecordStore.Snapshot snapshot = store.snapshot();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(indexPath), BUFFER_SIZE))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return false;
+            }
+            long length = in.readLong();
+            long storedChecksum = in.readLong();
+            int recordCount = in.readInt();
+            // Every indexed record must still be there as it was, an edit anywhere in the file invalidates the index
+            if (length > snapshot.getFileLength() || recordCount > snapshot.size()
+                    || storedChecksum != snapshot.getChecksum(recordCount)) {
+                return false;
+            }
+
+            int termCount = in.readInt();
+            for (int t = 0; t < termCount; t++) {
+                byte[] bytes = new byte[(int) readVarLong(in)];
+                in.readFully(bytes);
+                String term = new String(bytes, StandardCharsets.UTF_8);
+                int size = (int) readVarLong(in);
+                IntArrayList list = new IntArrayList(size);
+                int id = 0;
+                for (int i = 0; i < size; i++) {
+                    id += (int) readVarLong(in);
+                    list.add(id);
+                }
+                postings.put(term, list);
+            }
+
+            indexedCount = recordCount;
+            indexedLength = length;
+            persistedLength = length;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Discarding unreadable records index: " + e.getMessage());
+            postings.clear();
+            return false;
+        }
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
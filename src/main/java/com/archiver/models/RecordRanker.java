@@ -0,0 +1,159 @@
+package com.archiver.models;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the k records that best match the search words, by BM25 score.
+ *
+ * Every record offered already contains every word, or in a fuzzy search one
+ * of its expansions (searches are an AND of words), so what sets records apart is how often each word occurs in them
+ * (term frequency, with diminishing returns), how rare each word is across
+ * all records (inverse document frequency), and how long the record is: a
+ * word in a short record counts more than the same word in a long one.
+ *
+ * Only k records are held at any time, in a min-heap whose root is the
+ * weakest of them; a new record either replaces the root or is dropped. Ties
+ * go to the record that comes first in the file.
+ *
+ * Records are scored on their search text and kept as whatever the caller
+ * hands in with it (a line, or something that formats the record later), so
+ * only the k best ever need formatting.
+ *
+ * @param <T> what is kept of each record
+ */
+public class RecordRanker<T> {
+    // Usual BM25 parameters: term frequency saturation and length normalization
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // alternatives[i]: word i followed by its fuzzy expansions
+    private final String[][] alternatives;
+    private final double[] idf;
+    private final double averageLength;
+    private final int k;
+    // Weakest record at the root
+    private final PriorityQueue<Scored<T>> best;
+    private long offered;
+
+    private final Comparator<Scored<T>> weakestFirst = Comparator
+        .comparingDouble((Scored<T> scored) -> scored.score)
+        .thenComparing(Comparator.comparingLong((Scored<T> scored) -> scored.order).reversed());
+
+    private static final class Scored<T> {
+        final T record;
+        final double score;
+        final long order;
+
+        Scored(T record, double score, long order) {
+            this.record = record;
+            this.score = score;
+            this.order = order;
+        }
+    }
+
+    /**
+     * @param words lowercased search words
+     * @param expansions other terms counted as each word (fuzzy search), or null
+     * @param documentFrequencies records containing each word, or null when
+     *                            unknown (every word then weighs the same)
+     * @param recordCount records searched
+     * @param averageLength average record length in chars, or 0 when unknown
+     *                      (record length is then ignored)
+     * @param k how many records to keep
+     */
+    public RecordRanker(List<String> words, List<List<String>> expansions, int[] documentFrequencies,
+            int recordCount, double averageLength, int k) {
+        this.alternatives = new String[words.size()][];
+        for (int i = 0; i < alternatives.length; i++) {
+            List<String> terms = new ArrayList<>();
+            terms.add(words.get(i));
+            if (expansions != null) {
+                terms.addAll(expansions.get(i));
+            }
+            alternatives[i] = terms.toArray(new String[0]);
+        }
+        this.idf = new double[alternatives.length];
+        for (int i = 0; i < idf.length; i++) {
+            if (documentFrequencies == null) {
+                idf[i] = 1.0;
+            } else {
+                double df = Math.min(documentFrequencies[i], recordCount);
+                // The "+ 1" keeps words found in most records from weighing less than nothing
+                idf[i] = Math.log(1.0 + (recordCount - df + 0.5) / (df + 0.5));
+            }
+        }
+        this.averageLength = averageLength;
+        this.k = Math.max(1, k);
+        this.best = new PriorityQueue<>(this.k + 1, weakestFirst);
+    }
+
+    /**
+     * Scores a matching record and keeps it if it is among the best k so far.
+     * Records must be offered in file order.
+     *
+     * @param searchText the record folded, see {@link com.archiver.utils.TextFolding}
+     */
+    public void offer(T record, String searchText) {
+        long order = offered++;
+        double score = score(searchText);
+        if (best.size() < k) {
+            best.add(new Scored<>(record, score, order));
+        } else if (score > best.peek().score) {
+            // A later record needs a strictly better score to beat an earlier one
+            best.poll();
+            best.add(new Scored<>(record, score, order));
+        }
+    }
+
+    double score(String text) {
+        double lengthNorm = averageLength > 0 ? 1 - B + B * text.length() / averageLength : 1.0;
+        double score = 0;
+        for (int i = 0; i < alternatives.length; i++) {
+            // A misspelled word counts as often as its most frequent spelling
+            int tf = 0;
+            for (String term : alternatives[i]) {
+                tf = Math.max(tf, countOccurrences(text, term));
+            }
+            score += idf[i] * tf * (K1 + 1) / (tf + K1 * lengthNorm);
+        }
+        return score;
+    }
+
+    private static int countOccurrences(String text, String word) {
+        if (word.isEmpty()) {
+            return 0;
+        }
+        int count = 0;
+        int from = 0;
+        int at;
+        while ((at = text.indexOf(word, from)) >= 0) {
+            count++;
+            from = at + word.length();
+        }
+        return count;
+    }
+
+    /**
+     * Number of records offered, kept or not.
+     */
+    public long getMatchCount() {
+        return offered;
+    }
+
+    /**
+     * The records kept, best first.
+     */
+    public List<T> getBest() {
+        List<Scored<T>> sorted = new ArrayList<>(best);
+        sorted.sort(Collections.reverseOrder(weakestFirst));
+        List<T> records = new ArrayList<>(sorted.size());
+        for (Scored<T> scored : sorted) {
+            records.add(scored.record);
+        }
+        return records;
+    }
+}
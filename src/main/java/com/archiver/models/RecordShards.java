@@ -0,0 +1,214 @@
+package com.archiver.models;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The files holding the records. RECORDS_FILEPATH (or --records) names one of:
+ *
+ * <ul>
+ * <li>a records file: the only shard, as it always was</li>
+ * <li>a folder: every ".csv" and ".arcs" file in it is a shard</li>
+ * <li>a glob on the file name, like "D:\records\records-*.csv": every file
+ *     of that folder it matches is a shard</li>
+ * </ul>
+ *
+ * Shards are ordered by name, numbers in names compared as numbers
+ * (records-9.csv before records-10.csv), and records are in that order, shard
+ * after shard. The last shard is the active one, adds go there. With a folder
+ * or a glob, once the active shard reaches RECORDS_SHARD_MB (256 by default, 0
+ * to never), the next add starts a new shard named after it with the number
+ * one up: records-0007.csv rolls over to records-0008.csv, records.csv to
+ * records-0001.csv. A single records file never rolls over, the new file would
+ * not be found again.
+ *
+ * Shards another program creates are only seen on the next start.
+ */
+public class RecordShards {
+    private static final String FOLDER_GLOB = "*.{csv,arcs}";
+    private static final String FIRST_NUMBER = "0001";
+    private static final long DEFAULT_SHARD_MB = 256;
+
+    private final Path folder;
+    // Null for a single records file
+    private final PathMatcher matcher;
+    private final List<Path> paths;
+    private final long maxShardBytes;
+    // Set once no name after the active shard matches the glob
+    private boolean cannotRollOver;
+
+    private RecordShards(Path folder, PathMatcher matcher, List<Path> paths) {
+        this.folder = folder;
+        this.matcher = matcher;
+        this.paths = paths;
+        this.maxShardBytes = maxShardBytes();
+    }
+
+    /**
+     * Finds the shards of a records setting. A folder or a glob matching no
+     * file yet gets one shard to start with, created by the first add.
+     *
+     * @throws IllegalArgumentException when the setting cannot name any records file
+     */
+    public static RecordShards resolve(String records) {
+        String setting = records.trim();
+        int slash = Math.max(setting.lastIndexOf('/'), setting.lastIndexOf('\\'));
+        String fileName = setting.substring(slash + 1);
+        if (isGlob(fileName)) {
+            // Glob characters are not valid in a Windows path, only the folder part is one
+            Path folder = Paths.get(slash >= 0 ? setting.substring(0, slash + 1) : ".");
+            String first = fileName.replace("*", FIRST_NUMBER).replace('?', '0');
+            return open(folder, fileName, isGlob(first) ? null : first);
+        }
+        Path path = Paths.get(setting);
+        if (Files.isDirectory(path)) {
+            return open(path, FOLDER_GLOB, "records-" + FIRST_NUMBER + ".csv");
+        }
+        List<Path> single = new ArrayList<>();
+        single.add(path);
+        return new RecordShards(path.toAbsolutePath().getParent(), null, single);
+    }
+
+    private static RecordShards open(Path folder, String glob, String firstName) {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + glob);
+        List<Path> paths = new ArrayList<>();
+        if (Files.isDirectory(folder)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file) && matcher.matches(file.getFileName())) {
+                        paths.add(file);
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot list the records folder " + folder + ": " + e.getMessage());
+            }
+        }
+        if (paths.isEmpty()) {
+            if (firstName == null || !matcher.matches(Paths.get(firstName))) {
+                throw new IllegalArgumentException("No records file matches " + glob + " in " + folder);
+            }
+            paths.add(folder.resolve(firstName));
+        }
+        paths.sort(Comparator.comparing(RecordShards::nameKey));
+        return new RecordShards(folder, matcher, paths);
+    }
+
+    private static boolean isGlob(String fileName) {
+        for (char c : new char[] {'*', '?', '[', '{'}) {
+            if (fileName.indexOf(c) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long maxShardBytes() {
+        long megabytes = DEFAULT_SHARD_MB;
+        String setting = System.getenv("RECORDS_SHARD_MB");
+        if (setting != null && !setting.trim().isEmpty()) {
+            try {
+                // 0 never rolls over
+                megabytes = Math.max(0, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid RECORDS_SHARD_MB value, using " + megabytes + ": " + setting);
+            }
+        }
+        return megabytes << 20;
+    }
+
+    /**
+     * The shards in record order, the active one last.
+     */
+    public synchronized List<Path> getPaths() {
+        return Collections.unmodifiableList(new ArrayList<>(paths));
+    }
+
+    public synchronized Path getActive() {
+        return paths.get(paths.size() - 1);
+    }
+
+    /**
+     * Whether the next add should start a new shard instead of growing the
+     * active one.
+     */
+    public synchronized boolean isActiveFull() throws IOException {
+        if (matcher == null || maxShardBytes == 0 || cannotRollOver) {
+            return false;
+        }
+        Path active = getActive();
+        return Files.exists(active) && Files.size(active) >= maxShardBytes;
+    }
+
+    /**
+     * Makes a new shard, named after the active one, the active one. The file
+     * itself is created by the first add to it.
+     *
+     * @return the new active shard, or null when no name following the active
+     *         one matches the glob (adds then keep growing the active shard)
+     */
+    public synchronized Path rollOver() {
+        String name = getActive().getFileName().toString();
+        Path next;
+        do {
+            name = nextName(name);
+            next = folder.resolve(name);
+        } while (Files.exists(next));
+        if (!matcher.matches(next.getFileName())) {
+            System.err.println("No records file name after " + getActive().getFileName()
+                + " matches the records glob, adds keep growing it");
+            cannotRollOver = true;
+            return null;
+        }
+        paths.add(next);
+        return next;
+    }
+
+    /**
+     * records-0007.csv gives records-0008.csv, records.csv gives records-0001.csv.
+     */
+    static String nextName(String name) {
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        int digits = stem.length();
+        while (digits > 0 && Character.isDigit(stem.charAt(digits - 1))) {
+            digits--;
+        }
+        if (digits == stem.length()) {
+            return stem + "-" + FIRST_NUMBER + extension;
+        }
+        String number = stem.substring(digits);
+        String next = Long.toString(Long.parseLong(number) + 1);
+        while (next.length() < number.length()) {
+            next = "0" + next; // Keep the width, so plain name order stays right too
+        }
+        return stem.substring(0, digits) + next + extension;
+    }
+
+    /**
+     * Sorts by the name without its trailing number, then by that number
+     * (none first), then by the whole name.
+     */
+    private static String nameKey(Path path) {
+        String name = path.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        int digits = stem.length();
+        while (digits > 0 && Character.isDigit(stem.charAt(digits - 1))) {
+            digits--;
+        }
+        String number = stem.substring(digits).replaceFirst("^0+(?=.)", "");
+        // Fixed width number, "" when there is none, so string order is number order
+        String paddedNumber = number.isEmpty() ? "" : String.format("%20s", number).replace(' ', '0');
+        return stem.substring(0, digits) + '\0' + paddedNumber + '\0' + name;
+    }
+}
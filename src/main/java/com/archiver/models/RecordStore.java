@@ -0,0 +1,664 @@
+package com.archiver.models;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.CRC32;
+
+import com.archiver.utils.TextFolding;
+
+/**
+ * The records file held in memory, loaded once and kept up to date by
+ * watching the file.
+ *
+ * Record bytes (UTF-8, without line terminators) are packed back to back into
+ * large byte segments, and each record is located by a packed segment/offset
+ * long plus an int length. Heap use stays close to the size of the file
+ * instead of one String object per line.
+ *
+ * Next to each record the store keeps its search text: the record folded once
+ * at load time (lowercased, accents removed, see {@link TextFolding}), so that
+ * "itau" finds "Itaú" without any folding per search. Only records with
+ * non-ASCII text get one, in a second set of segments; ASCII records are
+ * searched as they are.
+ *
+ * Each record also gets a field table, found once at load time: where each of
+ * its ';' separated fields ends. Results are formatted and single fields read
+ * from that table, straight out of the segments, without splitting the record
+ * text again. A {@link ColumnarRecords} file gives the table as it is stored.
+ *
+ * Readers work on an immutable {@link Snapshot} and never take a lock or touch
+ * the filesystem. A refresh only reads what was appended since the last one,
+ * writes new bytes past everything published, and then publishes a new
+ * snapshot; a file that shrank or was rewritten is loaded again.
+ */
+public class RecordStore {
+    private static final int SEGMENT_SIZE = 64 << 20;
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final int FINGERPRINT_WINDOW = 4096;
+
+    private final Path recordsPath;
+    private final boolean columnar;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // Writer state, guarded by this
+    private final List<byte[]> segments = new ArrayList<>();
+    private int segmentFill;
+    private long[] locations = new long[1024];
+    private int[] lengths = new int[1024];
+    // Folded search text, for records that have one (length 0 for the others)
+    private final List<byte[]> searchSegments = new ArrayList<>();
+    private int searchSegmentFill;
+    private long[] searchLocations = new long[1024];
+    private int[] searchLengths = new int[1024];
+    private byte[] foldBuffer = new byte[512];
+    // fieldEnds[fieldTables[id] + i]: where field i of record id ends in the record
+    private int[] fieldTables = new int[1024];
+    private int[] fieldEnds = new int[4096];
+    private int fieldEndCount;
+    private int[] lineFieldEnds = new int[16];
+    private int count;
+    private long loadedLength;
+    // Last modified time of the file when it was last read, taken before reading
+    private FileTime loadedModified;
+    private long fingerprint;
+    private boolean lastRecordOpen;
+    private boolean endsWithCr;
+    // Goes up with every snapshot published, whatever changed
+    private long generation;
+    private WatchService watchService;
+    private Thread watcher;
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * Notified by the thread that refreshed the store, after the new snapshot
+     * was published.
+     */
+    public interface Listener {
+        /** Records [fromId, snapshot.size()) were appended. */
+        void recordsAppended(Snapshot snapshot, int fromId);
+
+        /** The last record of previous was removed because the file extended it. */
+        void recordRetracted(Snapshot previous, int id);
+
+        /** The file was rewritten and every record was loaded again. */
+        void recordsReloaded(Snapshot snapshot);
+    }
+
+    /**
+     * Gets records by id, to read only what it needs of them (a formatted
+     * result, a field) rather than the decoded record.
+     */
+    public interface RecordVisitor {
+        void visit(Snapshot snapshot, int id);
+    }
+
+    public RecordStore(Path recordsPath) {
+        this.recordsPath = recordsPath;
+        this.columnar = ColumnarRecords.isColumnar(recordsPath);
+    }
+
+    /**
+     * Loads the whole file. Call once before using the store.
+     */
+    public synchronized void load() throws IOException {
+        reset();
+        readFrom(0);
+        publish();
+    }
+
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    public Path getRecordsPath() {
+        return recordsPath;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Applies whatever changed in the file since the last refresh: only the
+     * appended tail when the file grew, everything when it shrank, was
+     * modified without growing (rewritten in place) or its content changed.
+     */
+    public synchronized void refresh() throws IOException {
+        long size = Files.size(recordsPath);
+        if (size == loadedLength && Files.getLastModifiedTime(recordsPath).equals(loadedModified)) {
+            return;
+        }
+        if (size <= loadedLength || fingerprint != computeFingerprint(recordsPath, loadedLength)) {
+            load();
+            Snapshot reloaded = snapshot;
+            for (Listener listener : listeners) {
+                listener.recordsReloaded(reloaded);
+            }
+            return;
+        }
+
+        int fromId = count;
+        int next = lastRecordOpen ? readByte(loadedLength) : -1;
+        if (next == '\n' || next == '\r') {
+            // The tail starts by ending the open line (how adds append): that record is complete as loaded
+            lastRecordOpen = false;
+            endsWithCr = next == '\r';
+            readFrom(loadedLength + 1);
+        } else if (lastRecordOpen) {
+            // The unterminated last line was extended, read it again
+            Snapshot previous = snapshot;
+            int lastId = count - 1;
+            long from = loadedLength - lengths[lastId];
+            // Readers of older snapshots still use these slots, do not reuse them
+            locations = locations.clone();
+            lengths = lengths.clone();
+            searchLocations = searchLocations.clone();
+            searchLengths = searchLengths.clone();
+            fieldTables = fieldTables.clone();
+            fieldEnds = fieldEnds.clone();
+            fieldEndCount = fieldTables[lastId];
+            count--;
+            lastRecordOpen = false;
+            publish();
+            for (Listener listener : listeners) {
+                listener.recordRetracted(previous, lastId);
+            }
+            fromId = count;
+            readFrom(from);
+        } else {
+            readFrom(loadedLength);
+        }
+        publish();
+
+        Snapshot appended = snapshot;
+        for (Listener listener : listeners) {
+            listener.recordsAppended(appended, fromId);
+        }
+    }
+
+    /**
+     * Starts a daemon thread that refreshes the store whenever the records
+     * file is modified on disk.
+     */
+    public synchronized void watch() throws IOException {
+        if (watcher != null) {
+            return;
+        }
+        Path directory = recordsPath.toAbsolutePath().getParent();
+        Path fileName = recordsPath.getFileName();
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        directory.register(watchService,
+            StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.watchService = watchService;
+
+        watcher = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    boolean changed = false;
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                            changed = true;
+                        }
+                    }
+                    key.reset();
+                    if (changed) {
+                        try {
+                            refresh();
+                        } catch (IOException e) {
+                            System.err.println("Error refreshing records: " + e.getMessage());
+                        }
+                    }
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                // Stopped
+            }
+        }, "records-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Stops watching the records file. The records stay readable, and
+     * {@link #refresh()} still picks up changes when called.
+     */
+    public synchronized void close() throws IOException {
+        if (watchService == null) {
+            return;
+        }
+        // The watcher thread ends on the closed service
+        watchService.close();
+        watchService = null;
+        watcher = null;
+    }
+
+    private int readByte(long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(recordsPath, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1);
+            return channel.read(buffer, position) == 1 ? buffer.get(0) : -1;
+        }
+    }
+
+    private void reset() {
+        segments.clear();
+        segmentFill = 0;
+        locations = new long[1024];
+        lengths = new int[1024];
+        searchSegments.clear();
+        searchSegmentFill = 0;
+        searchLocations = new long[1024];
+        searchLengths = new int[1024];
+        fieldTables = new int[1024];
+        fieldEnds = new int[4096];
+        fieldEndCount = 0;
+        count = 0;
+        loadedLength = 0;
+        lastRecordOpen = false;
+        endsWithCr = false;
+    }
+
+    private void readFrom(long from) throws IOException {
+        // Taken first: a change made while reading makes the next refresh look again
+        loadedModified = Files.getLastModifiedTime(recordsPath);
+        if (columnar) {
+            readColumnar(from);
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(recordsPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            byte[] line = new byte[256];
+            int lineLength = 0;
+            long position = from;
+            boolean skipLf = endsWithCr;
+
+            while (position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                byte[] data = buffer.array();
+                for (int i = 0; i < read; i++, position++) {
+                    byte b = data[i];
+                    if (skipLf) {
+                        skipLf = false;
+                        if (b == '\n') {
+                            continue;
+                        }
+                    }
+                    if (b == '\n' || b == '\r') {
+                        append(line, lineLength);
+                        lineLength = 0;
+                        skipLf = b == '\r';
+                    } else {
+                        if (lineLength == line.length) {
+                            line = Arrays.copyOf(line, line.length * 2);
+                        }
+                        line[lineLength++] = b;
+                    }
+                }
+            }
+
+            lastRecordOpen = lineLength > 0;
+            if (lastRecordOpen) {
+                append(line, lineLength);
+            }
+            endsWithCr = skipLf;
+            loadedLength = position;
+            fingerprint = computeFingerprint(channel, loadedLength);
+        }
+    }
+
+    private void readColumnar(long from) throws IOException {
+        try (FileChannel channel = FileChannel.open(recordsPath, StandardOpenOption.READ)) {
+            // Segments are only read whole, so no record is ever left open
+            loadedLength = ColumnarRecords.read(channel, from, channel.size(), this::append);
+            fingerprint = computeFingerprint(channel, loadedLength);
+        }
+    }
+
+    private void append(byte[] bytes, int length) {
+        // Fields are what lies between the ';' of the line
+        int fieldCount = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || bytes[i] == ';') {
+                if (fieldCount == lineFieldEnds.length) {
+                    lineFieldEnds = Arrays.copyOf(lineFieldEnds, fieldCount * 2);
+                }
+                lineFieldEnds[fieldCount++] = i;
+            }
+        }
+        append(bytes, length, lineFieldEnds, fieldCount);
+    }
+
+    private void append(byte[] bytes, int length, int[] recordFieldEnds, int fieldCount) {
+        long location = place(segments, segmentFill, bytes, length);
+        segmentFill = (int) location + length;
+
+        if (count == locations.length) {
+            locations = Arrays.copyOf(locations, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            searchLocations = Arrays.copyOf(searchLocations, count * 2);
+            searchLengths = Arrays.copyOf(searchLengths, count * 2);
+            fieldTables = Arrays.copyOf(fieldTables, count * 2);
+        }
+        locations[count] = location;
+        lengths[count] = length;
+
+        if (fieldEndCount + fieldCount > fieldEnds.length) {
+            fieldEnds = Arrays.copyOf(fieldEnds, Math.max(fieldEndCount + fieldCount, fieldEnds.length * 2));
+        }
+        System.arraycopy(recordFieldEnds, 0, fieldEnds, fieldEndCount, fieldCount);
+        fieldTables[count] = fieldEndCount;
+        fieldEndCount += fieldCount;
+
+        // Fold accented records once here rather than on every search
+        searchLengths[count] = 0;
+        if (!isAscii(bytes, length)) {
+            if (foldBuffer.length < 2 * length) {
+                foldBuffer = new byte[2 * length];
+            }
+            byte[] folded = foldBuffer;
+            int foldedLength = TextFolding.foldUtf8(bytes, length, foldBuffer);
+            if (foldedLength < 0) {
+                // Not only Latin, fold the decoded text
+                folded = TextFolding.fold(new String(bytes, 0, length, StandardCharsets.UTF_8))
+                    .getBytes(StandardCharsets.UTF_8);
+                foldedLength = folded.length;
+            }
+            long searchLocation = place(searchSegments, searchSegmentFill, folded, foldedLength);
+            searchSegmentFill = (int) searchLocation + foldedLength;
+            searchLocations[count] = searchLocation;
+            searchLengths[count] = foldedLength;
+        }
+        count++;
+    }
+
+    /**
+     * Copies bytes to the end of the last segment, or to a new segment when it
+     * is full, and returns their packed segment/offset location.
+     */
+    private static long place(List<byte[]> segments, int segmentFill, byte[] bytes, int length) {
+        byte[] segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment == null || segmentFill + length > SEGMENT_SIZE) {
+            // Lines longer than a segment get a segment of their own
+            segment = new byte[Math.max(length, 4096)];
+            segments.add(segment);
+            segmentFill = 0;
+        } else if (segmentFill + length > segment.length) {
+            // Grow the open segment; published snapshots keep the old array
+            int grown = (int) Math.min(SEGMENT_SIZE, Math.max(segmentFill + length, segment.length * 3L / 2));
+            segment = Arrays.copyOf(segment, grown);
+            segments.set(segments.size() - 1, segment);
+        }
+        System.arraycopy(bytes, 0, segment, segmentFill, length);
+        return ((long) (segments.size() - 1) << 32) | segmentFill;
+    }
+
+    private static boolean isAscii(byte[] bytes, int length) {
+        return isAscii(bytes, 0, length);
+    }
+
+    private static boolean isAscii(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void publish() {
+        snapshot = new Snapshot(segments.toArray(new byte[0][]), locations, lengths,
+            searchSegments.toArray(new byte[0][]), searchLocations, searchLengths, fieldTables, fieldEnds,
+            fieldEndCount, count, loadedLength, lastRecordOpen, ++generation);
+    }
+
+    /**
+     * CRC of the first and last bytes of the given length of the file, enough to
+     * notice that it was rewritten rather than appended to.
+     */
+    private static long computeFingerprint(Path path, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return computeFingerprint(channel, length);
+        }
+    }
+
+    private static long computeFingerprint(FileChannel channel, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        int headLength = (int) Math.min(FINGERPRINT_WINDOW, length);
+        ByteBuffer head = ByteBuffer.allocate(headLength);
+        readFully(channel, head, 0);
+        crc.update(head.array(), 0, headLength);
+        if (length > FINGERPRINT_WINDOW) {
+            int tailLength = (int) Math.min(FINGERPRINT_WINDOW, length - FINGERPRINT_WINDOW);
+            ByteBuffer tail = ByteBuffer.allocate(tailLength);
+            readFully(channel, tail, length - tailLength);
+            crc.update(tail.array(), 0, tailLength);
+        }
+        crc.update(Long.toString(length).getBytes(StandardCharsets.US_ASCII));
+        return crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Records file is shorter than expected");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Immutable view of the records at one point in time.
+     */
+    public static final class Snapshot {
+        private final byte[][] segments;
+        private final ByteBuffer[] buffers;
+        private final long[] locations;
+        private final int[] lengths;
+        private final byte[][] searchSegments;
+        private final ByteBuffer[] searchBuffers;
+        private final long[] searchLocations;
+        private final int[] searchLengths;
+        private final int[] fieldTables;
+        private final int[] fieldEnds;
+        private final int fieldEndCount;
+        private final int count;
+        private final long fileLength;
+        private final boolean lastRecordOpen;
+        private final long generation;
+
+        private Snapshot(byte[][] segments, long[] locations, int[] lengths, byte[][] searchSegments,
+                         long[] searchLocations, int[] searchLengths, int[] fieldTables, int[] fieldEnds,
+                         int fieldEndCount, int count, long fileLength, boolean lastRecordOpen,
+                         long generation) {
+            this.segments = segments;
+            this.buffers = wrap(segments);
+            this.locations = locations;
+            this.lengths = lengths;
+            this.searchSegments = searchSegments;
+            this.searchBuffers = wrap(searchSegments);
+            this.searchLocations = searchLocations;
+            this.searchLengths = searchLengths;
+            this.fieldTables = fieldTables;
+            this.fieldEnds = fieldEnds;
+            this.fieldEndCount = fieldEndCount;
+            this.count = count;
+            this.fileLength = fileLength;
+            this.lastRecordOpen = lastRecordOpen;
+            this.generation = generation;
+        }
+
+        private static ByteBuffer[] wrap(byte[][] segments) {
+            ByteBuffer[] buffers = new ByteBuffer[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                buffers[i] = ByteBuffer.wrap(segments[i]);
+            }
+            return buffers;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Number of this snapshot among those the store published: two
+         * snapshots with the same generation hold the same records.
+         */
+        public long getGeneration() {
+            return generation;
+        }
+
+        /** Length of the records file this snapshot was read from. */
+        public long getFileLength() {
+            return fileLength;
+        }
+
+        /** Whether the last record has no line terminator yet and may still be extended. */
+        public boolean isLastRecordOpen() {
+            return lastRecordOpen;
+        }
+
+        public String getRecord(int id) {
+            long location = locations[id];
+            return new String(segments[(int) (location >>> 32)], (int) location, lengths[id], StandardCharsets.UTF_8);
+        }
+
+        /**
+         * The record lowercased and without accents, what searches match against.
+         */
+        public String getSearchText(int id) {
+            if (searchLengths[id] == 0) {
+                return getRecord(id).toLowerCase();
+            }
+            long location = searchLocations[id];
+            return new String(searchSegments[(int) (location >>> 32)], (int) location, searchLengths[id],
+                StandardCharsets.UTF_8);
+        }
+
+        public int getRecordLength(int id) {
+            return lengths[id];
+        }
+
+        /**
+         * CRC of the first count records, each followed by a line feed whatever
+         * ended it in the file. Every byte of them counts, unlike the file
+         * fingerprint; it is computed from memory, without reading the file.
+         */
+        public long getChecksum(int count) {
+            CRC32 crc = new CRC32();
+            for (int id = 0; id < count; id++) {
+                long location = locations[id];
+                crc.update(segments[(int) (location >>> 32)], (int) location, lengths[id]);
+                crc.update('\n');
+            }
+            return crc.getValue();
+        }
+
+        /** Number of ';' separated fields of the record, at least 1. */
+        public int getFieldCount(int id) {
+            int end = id + 1 < count ? fieldTables[id + 1] : fieldEndCount;
+            return end - fieldTables[id];
+        }
+
+        /** Field i of the record, as it is in the file (not trimmed). */
+        public String getField(int id, int field) {
+            long location = locations[id];
+            int start = fieldStart(id, field);
+            return new String(segments[(int) (location >>> 32)], (int) location + start,
+                fieldEnds[fieldTables[id] + field] - start, StandardCharsets.UTF_8);
+        }
+
+        private int fieldStart(int id, int field) {
+            // The previous field ends on the separator
+            return field == 0 ? 0 : fieldEnds[fieldTables[id] + field - 1] + 1;
+        }
+
+        /**
+         * The record as shown in results: its fields trimmed and joined by
+         * " | ", trailing empty fields left out. Built from the field table,
+         * each field decoded straight from the segment.
+         */
+        public String formatRecord(int id) {
+            byte[] segment = segments[(int) (locations[id] >>> 32)];
+            int base = (int) locations[id];
+            int table = fieldTables[id];
+            int fields = getFieldCount(id);
+            // Same fields as splitting on ';', which drops the empty ones at the end
+            while (fields > 0 && fieldEnds[table + fields - 1] == fieldStart(id, fields - 1)) {
+                fields--;
+            }
+            StringBuilder formatted = new StringBuilder(lengths[id] + 2 * fields);
+            for (int field = 0; field < fields; field++) {
+                if (field > 0) {
+                    formatted.append(" | ");
+                }
+                int start = base + fieldStart(id, field);
+                int end = base + fieldEnds[table + field];
+                // Trimmed like String.trim: UTF-8 bytes up to ' ' are those chars themselves
+                while (start < end && (segment[start] & 0xFF) <= ' ') {
+                    start++;
+                }
+                while (end > start && (segment[end - 1] & 0xFF) <= ' ') {
+                    end--;
+                }
+                if (isAscii(segment, start, end)) {
+                    for (int i = start; i < end; i++) {
+                        formatted.append((char) segment[i]);
+                    }
+                } else {
+                    formatted.append(new String(segment, start, end - start, StandardCharsets.UTF_8));
+                }
+            }
+            return formatted.toString();
+        }
+
+        /**
+         * Whether the record's search text contains every word of the matcher.
+         */
+        public boolean matches(int id, QueryMatcher matcher) {
+            if (searchLengths[id] > 0) {
+                long location = searchLocations[id];
+                int offset = (int) location;
+                return matcher.matches(searchBuffers[(int) (location >>> 32)], offset, offset + searchLengths[id]);
+            }
+            long location = locations[id];
+            int offset = (int) location;
+            return matcher.matches(buffers[(int) (location >>> 32)], offset, offset + lengths[id]);
+        }
+
+        /** Approximate heap held by the record bytes, their search text, field tables and locations. */
+        public long getMemoryFootprint() {
+            long bytes = (long) (locations.length + searchLocations.length) * Long.BYTES
+                + (long) (lengths.length + searchLengths.length + fieldTables.length + fieldEnds.length)
+                * Integer.BYTES;
+            for (byte[] segment : segments) {
+                bytes += segment.length;
+            }
+            for (byte[] segment : searchSegments) {
+                bytes += segment.length;
+            }
+            return bytes;
+        }
+    }
+}
@@ -1,26 +1,276 @@
 package com.archiver.models;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+import com.archiver.utils.Histogram;
+import com.archiver.utils.IntArrayList;
+import com.archiver.utils.LruCache;
+import com.archiver.utils.Metrics;
+import com.archiver.utils.OperationTimer;
+import com.archiver.utils.TextFolding;
 
 public class SearchModel {
     // Add model properties and methods here
     private String searchTerm;
+    private volatile QueryMatcher queryMatcher;
+    private volatile boolean fuzzy;
+    // Most vocabulary terms a misspelled word is expanded to
+    private static final int MAX_EXPANSIONS = 20;
     private static final String DELIMITER = ";"; // Changed from comma to semicolon
+    // The records files, see RecordShards; a shard is only added to, never removed
+    private final RecordShards recordShards;
+    private final List<Shard> shards = new CopyOnWriteArrayList<>();
+    private BackupJournal backupJournal;
+    private RecordAppender recordAppender;
+    // Whether the active shard has records yet, the next one is then appended on a new line
+    private boolean activeShardStarted;
+    private AttachmentStore attachmentStore;
+    private FieldCatalog fieldCatalog;
+    // Past this many hits the index answers faster than checking every one of them again
+    private static final int MAX_REFINED_HITS = 10_000;
+    // Hits of recent searches by shard and sorted words, only valid for the records generation they were found in
+    private static final long DEFAULT_RESULT_CACHE_MB = 16;
+    // Overrides SEARCH_CACHE_MB
+    public static final String SEARCH_CACHE_PROPERTY = "archiver.searchCacheMb";
+    private final LruCache<String, Hits> resultCache = new LruCache<>(resultCacheBytes(),
+        hits -> (long) hits.ids.length * Integer.BYTES + 64);
+    // Searches every shard but the first, which the searching thread takes itself
+    private static final int SHARD_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final ExecutorService SHARD_SEARCHES = Executors.newFixedThreadPool(SHARD_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "shard-search");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Published over JMX, see Metrics
+    private static final OperationTimer SEARCH_TIMER = Metrics.timer("searchRecords");
+    private static final OperationTimer RANKED_SEARCH_TIMER = Metrics.timer("searchRecordsRanked");
+    private static final OperationTimer ADD_TIMER = Metrics.timer("addNewContent");
+    private static final Histogram LINES_SCANNED = Metrics.histogram("search.linesScanned");
+    private static final Histogram BYTES_SCANNED = Metrics.histogram("search.bytesScanned");
+
+    // Records setting given explicitly, or null to read RECORDS_FILEPATH
+    private final String recordsFilePath;
+    // Whether the loaded records follow their files (watcher, index and cache kept up to date)
+    private final boolean following;
 
-    // Add constructor to validate environment variable on initialization
+    /**
+     * Works on the records named by RECORDS_FILEPATH.
+     *
+     * @throws IllegalStateException when RECORDS_FILEPATH is not set
+     * @throws IllegalArgumentException when it names no usable records file
+     */
     public SearchModel() {
-        // Validate environment variable exists during initialization
-        getRecordsFilePath();
+        this(false);
+    }
+
+    /**
+     * @param loadInBackground load the records and their index on a background
+     *        thread and return right away (the window shows sooner); searches
+     *        made meanwhile read the records files
+     */
+    public SearchModel(boolean loadInBackground) {
+        this(null, loadInBackground, true);
+    }
+
+    // Works on the given records file instead of RECORDS_FILEPATH (benchmarks, tools)
+    public SearchModel(Path recordsFile) {
+        this(recordsFile.toString(), false, true);
+    }
+
+    // Works on the given records file, shards folder or glob instead of RECORDS_FILEPATH (benchmarks, tools)
+    public SearchModel(String records) {
+        this(records, false, true);
+    }
+
+    /**
+     * A model for one command line run: the records and their saved index are
+     * loaded, but nothing watches the files or keeps the index and result
+     * cache in sync afterwards. Adds still go to the records files.
+     *
+     * @param records records file, shards folder or glob, or null to read RECORDS_FILEPATH
+     */
+    public static SearchModel forCommandLine(String records) {
+        return new SearchModel(records, false, false);
+    }
+
+    private SearchModel(String records, boolean loadInBackground, boolean following) {
+        this.recordsFilePath = records;
+        this.following = following;
+        // Validate environment variable exists during initialization; the caller reports a bad setting
+        this.recordShards = RecordShards.resolve(getRecordsFilePath());
+        for (Path path : recordShards.getPaths()) {
+            shards.add(new Shard(shards.size(), path));
+        }
+        publishMetrics();
+        if (loadInBackground) {
+            Thread loader = new Thread(this::openRecords, "records-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            openRecords();
+        }
+    }
+
+    /**
+     * One records file with what was loaded of it. The store and the index are
+     * null until loaded, and stay null when loading failed: searches then read
+     * the file instead.
+     */
+    private static final class Shard {
+        final int number;
+        final Path path;
+        volatile RecordStore store;
+        volatile RecordIndex index;
+        // Records found in this shard by the last complete search, refined by the next one when it can only narrow
+        volatile Hits lastHits;
+        // Guarded by the model
+        boolean opened;
+
+        Shard(int number, Path path) {
+            this.number = number;
+            this.path = path;
+        }
+    }
+
+    private void openRecords() {
+        for (Shard shard : shards) {
+            openShard(shard);
+        }
+    }
+
+    private void openShard(Shard shard) {
+        synchronized (this) {
+            if (shard.opened) {
+                return; // Already loaded, or being loaded by the other thread (loader or first add)
+            }
+            if (!java.nio.file.Files.exists(shard.path)) {
+                // Loaded once that add created it
+                System.err.println("Records file " + shard.path + " does not exist yet, the first add creates it");
+                return;
+            }
+            shard.opened = true;
+        }
+        RecordStore store;
+        try {
+            // Load the records once, then follow changes to the file
+            store = new RecordStore(shard.path);
+            store.load();
+        } catch (Exception e) {
+            // Searches still work without the store, they just read the file every time
+            System.err.println("Records of " + shard.path.getFileName()
+                + " could not be loaded in memory, searching the file instead: " + e.getMessage());
+            synchronized (this) {
+                shard.opened = false; // Tried again when an add opens the records file
+            }
+            return;
+        }
+        synchronized (this) {
+            // Searches use the store from here on; a catalog handed out while loading follows it too
+            shard.store = store;
+            if (fieldCatalog != null) {
+                fieldCatalog.follow(store);
+            }
+        }
+        try {
+            shard.index = RecordIndex.open(store, following);
+        } catch (Exception e) {
+            // Searches still work without the index, they just scan every record
+            System.err.println("Records index of " + shard.path.getFileName()
+                + " unavailable, falling back to full scans: " + e.getMessage());
+        }
+        if (!following) {
+            return;
+        }
+        // Whatever changes the records (an add, another program) makes every cached result stale
+        store.addListener(new RecordStore.Listener() {
+            @Override
+            public void recordsAppended(RecordStore.Snapshot snapshot, int fromId) {
+                forgetHits();
+            }
+
+            @Override
+            public void recordRetracted(RecordStore.Snapshot previous, int id) {
+                forgetHits();
+            }
+
+            @Override
+            public void recordsReloaded(RecordStore.Snapshot snapshot) {
+                forgetHits();
+            }
+        });
+        try {
+            store.watch();
+        } catch (Exception e) {
+            System.err.println("Records file changes will not be picked up automatically: " + e.getMessage());
+        }
+        try {
+            // An append made while loading, before the watch was registered, sends no event
+            store.refresh();
+        } catch (java.io.IOException e) {
+            System.err.println("Error refreshing records: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Totals over the shards loaded so far.
+     */
+    private void publishMetrics() {
+        Metrics.gauge("records.shards", shards::size);
+        Metrics.gauge("records.count", () -> sumOverStores(store -> store.snapshot().size()));
+        Metrics.gauge("records.fileBytes", () -> sumOverStores(store -> store.snapshot().getFileLength()));
+        Metrics.gauge("records.memoryBytes", () -> sumOverStores(store -> store.snapshot().getMemoryFootprint()));
+        Metrics.gauge("searchCache.entries", resultCache::size);
+        Metrics.gauge("searchCache.bytes", resultCache::getWeight);
+        Metrics.gauge("index.terms", () -> {
+            long terms = 0;
+            for (Shard shard : shards) {
+                RecordIndex index = shard.index;
+                if (index != null) {
+                    terms += index.getTermCount();
+                }
+            }
+            return terms;
+        });
+    }
+
+    private long sumOverStores(ToLongFunction<RecordStore> value) {
+        long total = 0;
+        for (Shard shard : shards) {
+            RecordStore store = shard.store;
+            if (store != null) {
+                total += value.applyAsLong(store);
+            }
+        }
+        return total;
     }
 
     public void setSearchTerm(String searchTerm) {
         this.searchTerm = searchTerm;
+        // Compile once here instead of re-splitting the term for every line
+        this.queryMatcher = searchTerm != null ? QueryMatcher.compile(searchTerm) : null;
+    }
+
+    /**
+     * Whether searches also accept, for each word, vocabulary terms a few
+     * typos away from it. Needs the records index; without it searches stay exact.
+     */
+    public void setFuzzy(boolean fuzzy) {
+        this.fuzzy = fuzzy;
     }
 
     public String getSearchTerm() {
@@ -28,206 +278,783 @@ public class SearchModel {
     }
 
     public boolean containsSearchTerm(String line){
+        return queryMatcher.matchesFolding(line);
+    }
 
-        var words = searchTerm.toLowerCase().split(" ");
+    public List<String> searchRecords() {
+        List<String> results = new ArrayList<>();
+        searchRecords(results::add, () -> false);
+        return results;
+    }
 
-        var searchWords = new ArrayList<String>();
-        var foundWords = new ArrayList<String>();
+    /**
+     * Streams the formatted records matching the current search term to the
+     * consumer as they are found, in file order. Meant to run off the FX thread;
+     * stops as soon as cancelled returns true.
+     */
+    public void searchRecords(Consumer<String> consumer, BooleanSupplier cancelled) {
+        // Records of the store are formatted from their field table, only file lines are split
+        searchRecords((snapshot, id) -> consumer.accept(snapshot.formatRecord(id)),
+            line -> consumer.accept(formatLine(line)), cancelled);
+    }
 
-        for(var word : words){
-            if ( word.trim().equals(""))
-                continue;
-            searchWords.add(word.toLowerCase());
+    /**
+     * Like {@link #searchRecords(Consumer, BooleanSupplier)}, without formatting
+     * anything: records of loaded shards go to records by id, lines of shards
+     * read from their file to lines as they are in the file. For results that
+     * are kept and only shown a page at a time, see {@link FoundRecords}.
+     *
+     * @throws java.io.UncheckedIOException when a records file cannot be read
+     */
+    public void searchRecords(RecordStore.RecordVisitor records, Consumer<String> lines, BooleanSupplier cancelled) {
+        // Capture the matcher so a new search term does not change a running search
+        QueryMatcher matcher = queryMatcher;
+        long start = SEARCH_TIMER.start();
+        try {
+            findRecords(matcher, expand(matcher), records, lines, cancelled);
+        } catch (RuntimeException e) {
+            SEARCH_TIMER.fail(start);
+            throw e;
+        }
+        stopTimer(SEARCH_TIMER, start, cancelled);
+    }
+
+    /**
+     * Cancelled searches are left out of the latencies, they say nothing of how
+     * long a search takes.
+     */
+    private static void stopTimer(OperationTimer timer, long start, BooleanSupplier cancelled) {
+        if (!cancelled.getAsBoolean()) {
+            timer.stop(start);
         }
+    }
+
+    /**
+     * Like {@link #searchRecords(Consumer, BooleanSupplier)}, but only the topK
+     * records with the best BM25 score are sent, best first, once the search is
+     * complete. Whatever the number of matches, at most topK records are held
+     * and formatted. Nothing is sent when the search is cancelled.
+     */
+    public void searchRecordsRanked(int topK, Consumer<String> consumer, BooleanSupplier cancelled) {
+        QueryMatcher matcher = queryMatcher;
+        long start = RANKED_SEARCH_TIMER.start();
+        List<List<String>> expansions = expand(matcher);
+        RecordRanker<Supplier<String>> ranker = newRanker(matcher, expansions, topK);
+        try {
+            // Kept records are formatted once they made it to the top
+            findRecords(matcher, expansions,
+                (snapshot, id) -> ranker.offer(() -> snapshot.formatRecord(id), snapshot.getSearchText(id)),
+                line -> ranker.offer(() -> formatLine(line), TextFolding.fold(line)), cancelled);
+        } catch (RuntimeException e) {
+            RANKED_SEARCH_TIMER.fail(start);
+            throw e;
+        }
+        if (cancelled.getAsBoolean()) {
+            return;
+        }
+        for (Supplier<String> record : ranker.getBest()) {
+            consumer.accept(record.get());
+        }
+        stopTimer(RANKED_SEARCH_TIMER, start, cancelled);
+    }
 
-        for(var word : searchWords){
-            if(line.toLowerCase().contains(word)){
-                foundWords.add(word);
+    /**
+     * Vocabulary terms close to each search word in fuzzy mode, or null when
+     * the search is exact.
+     */
+    private List<List<String>> expand(QueryMatcher matcher) {
+        List<RecordIndex> indexes = new ArrayList<>();
+        for (Shard shard : shards) {
+            RecordIndex index = shard.index;
+            if (index != null) {
+                indexes.add(index);
             }
         }
+        if (!fuzzy || indexes.isEmpty()) {
+            return null;
+        }
+        List<List<String>> expansions = new ArrayList<>();
+        for (String word : matcher.getWords()) {
+            if (!RecordIndex.canAnswer(word)) {
+                return null; // The index cannot answer this search, it is scanned exactly
+            }
+            // Each shard has its own vocabulary, a term close to the word in any of them counts
+            java.util.Set<String> terms = new java.util.LinkedHashSet<>();
+            for (RecordIndex index : indexes) {
+                terms.addAll(index.expand(word, MAX_EXPANSIONS));
+            }
+            expansions.add(new ArrayList<>(terms));
+        }
+        return expansions;
+    }
 
-        if(foundWords.size() == searchWords.size()){
-            return true;
+    private <T> RecordRanker<T> newRanker(QueryMatcher matcher, List<List<String>> expansions, int topK) {
+        List<String> words = matcher.getWords();
+        int[] documentFrequencies = null;
+        int recordCount = 0;
+        long fileLength = 0;
+        boolean indexed = true;
+        // Statistics of all the shards together, a record scores the same whatever shard holds it
+        for (Shard shard : shards) {
+            RecordStore store = shard.store;
+            if (store == null) {
+                continue;
+            }
+            RecordStore.Snapshot snapshot = store.snapshot();
+            recordCount += snapshot.size();
+            fileLength += snapshot.getFileLength();
+            RecordIndex index = shard.index;
+            int[] shardFrequencies = index != null && indexed ? index.documentFrequencies(words, expansions) : null;
+            if (shardFrequencies == null) {
+                indexed = false;
+                documentFrequencies = null;
+            } else if (documentFrequencies == null) {
+                documentFrequencies = shardFrequencies;
+            } else {
+                for (int w = 0; w < documentFrequencies.length; w++) {
+                    documentFrequencies[w] += shardFrequencies[w];
+                }
+            }
         }
+        // File bytes per record: close enough to the average record length for normalizing
+        double averageLength = recordCount > 0 ? (double) fileLength / recordCount : 0;
+        return new RecordRanker<>(words, expansions, documentFrequencies, recordCount, averageLength, topK);
+    }
+
+    /**
+     * The records a complete search found, by id in the records generation it
+     * ran on.
+     */
+    private static final class Hits {
+        final long generation;
+        final List<String> words;
+        final int[] ids;
 
-        return false;
+        Hits(long generation, List<String> words, int[] ids) {
+            this.generation = generation;
+            this.words = words;
+            this.ids = ids;
+        }
+
+        /**
+         * Whether every record matching words is among these hits: each word
+         * searched before is part of one of the new words (same words plus
+         * more, or a word typed further), and a search is an AND of substrings.
+         * The very same words are not narrowing anything: those hits are what
+         * the result cache is for, and without it the search runs again.
+         */
+        boolean contain(RecordStore.Snapshot current, List<String> newWords) {
+            if (current.getGeneration() != generation) {
+                return false; // Records were added or reloaded since
+            }
+            if (new java.util.HashSet<>(words).equals(new java.util.HashSet<>(newWords))) {
+                return false;
+            }
+            for (String word : words) {
+                boolean covered = false;
+                for (String newWord : newWords) {
+                    if (newWord.contains(word)) {
+                        covered = true;
+                        break;
+                    }
+                }
+                if (!covered) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
-    public List<String> searchRecords() {
-        List<String> results = new ArrayList<>();
-        
+    /**
+     * Streams the matching records in file order, shard after shard: to records
+     * when they come from a store, as raw lines to lines when a file is read
+     * instead. The first shard is searched on the calling thread and streamed as
+     * its records are found; the others are searched meanwhile on the shard
+     * pool and their hits kept until the shards before them are handed over.
+     * With a single processor that hand-off only costs, shards are then searched
+     * one after the other. A shard that cannot be read fails the whole search,
+     * with an UncheckedIOException: part of the hits is not an answer.
+     */
+    private void findRecords(QueryMatcher matcher, List<List<String>> expansions,
+            RecordStore.RecordVisitor records, Consumer<String> lines, BooleanSupplier cancelled) {
+        List<Shard> searched = new ArrayList<>(shards);
+        List<Future<ShardHits>> others = new ArrayList<>();
         try {
-            // Use File instead of ResourceStream since we're reading from filesystem path
-            File file = new File(getRecordsFilePath());
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)
-            );
-            String line;
-            
-            while ((line = reader.readLine()) != null) {
-                if (containsSearchTerm(line)){
-                    // Split the line by delimiter and format
-                    String[] parts = line.split(DELIMITER);
-                    StringBuilder formattedResult = new StringBuilder();
-                    
-                    // Add each element with a separator
-                    for (int i = 0; i < parts.length; i++) {
-                        if (i > 0) {
-                            formattedResult.append(" | ");
-                        }
-                        formattedResult.append(parts[i].trim());
-                    }
-                    
-                    results.add(formattedResult.toString());
+            if (SHARD_THREADS == 1) {
+                ScanCount scanned = new ScanCount();
+                for (Shard shard : searched) {
+                    findShardRecords(shard, matcher, expansions, records, lines, scanned, cancelled);
                 }
+                recordScanned(scanned.lines, scanned.bytes, cancelled);
+                return;
             }
-            reader.close();
-        } catch (Exception e) {
-            e.printStackTrace();
+            for (Shard shard : searched.subList(1, searched.size())) {
+                others.add(SHARD_SEARCHES.submit(() -> {
+                    ShardHits hits = new ShardHits();
+                    findShardRecords(shard, matcher, expansions, hits, hits.lines::add, hits.scanned, cancelled);
+                    return hits;
+                }));
+            }
+            ScanCount scanned = new ScanCount();
+            findShardRecords(searched.get(0), matcher, expansions, records, lines, scanned, cancelled);
+            for (Future<ShardHits> other : others) {
+                ShardHits hits = other.get();
+                hits.handTo(records, lines, cancelled);
+                scanned.add(hits.scanned.lines, hits.scanned.bytes);
+            }
+            recordScanned(scanned.lines, scanned.bytes, cancelled);
+        } catch (java.io.IOException e) {
+            cancelAll(others);
+            throw new java.io.UncheckedIOException(e);
+        } catch (ExecutionException e) {
+            cancelAll(others);
+            Throwable cause = e.getCause();
+            if (cause instanceof java.io.IOException) {
+                throw new java.io.UncheckedIOException((java.io.IOException) cause);
+            }
+            throw new CompletionException(cause);
+        } catch (InterruptedException e) {
+            cancelAll(others);
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        } catch (RuntimeException e) {
+            cancelAll(others);
+            throw e;
+        }
+    }
+
+    /**
+     * Shards not started yet are not searched for nothing.
+     */
+    private static void cancelAll(List<Future<ShardHits>> others) {
+        for (Future<ShardHits> other : others) {
+            other.cancel(false);
+        }
+    }
+
+    private void findShardRecords(Shard shard, QueryMatcher matcher, List<List<String>> expansions,
+            RecordStore.RecordVisitor records, Consumer<String> lines, ScanCount scanned,
+            BooleanSupplier cancelled) throws java.io.IOException {
+        RecordStore store = shard.store;
+        if (store != null) {
+            findStoredRecords(shard, store, matcher, expansions, records, scanned, cancelled);
+        } else if (java.nio.file.Files.exists(shard.path)) {
+            long lineCount = ParallelRecordScanner.scan(shard.path, matcher, lines, cancelled);
+            scanned.add(lineCount, java.nio.file.Files.size(shard.path));
+        }
+        // A shard with no file yet has no records, the first add to it creates it
+    }
+
+    /**
+     * Lines and bytes a search went through, over all shards.
+     */
+    private static final class ScanCount {
+        long lines;
+        long bytes;
+
+        void add(long lines, long bytes) {
+            this.lines += lines;
+            this.bytes += bytes;
+        }
+    }
+
+    /**
+     * What a shard searched on the pool found, kept until it is its turn.
+     */
+    private static final class ShardHits implements RecordStore.RecordVisitor {
+        final ScanCount scanned = new ScanCount();
+        final List<String> lines = new ArrayList<>();
+        final IntArrayList ids = new IntArrayList();
+        RecordStore.Snapshot snapshot;
+
+        @Override
+        public void visit(RecordStore.Snapshot snapshot, int id) {
+            this.snapshot = snapshot;
+            ids.add(id);
+        }
+
+        void handTo(RecordStore.RecordVisitor records, Consumer<String> lineConsumer, BooleanSupplier cancelled) {
+            for (int i = 0; i < ids.size() && !cancelled.getAsBoolean(); i++) {
+                records.visit(snapshot, ids.get(i));
+            }
+            for (int i = 0; i < lines.size() && !cancelled.getAsBoolean(); i++) {
+                lineConsumer.accept(lines.get(i));
+            }
+        }
+    }
+
+    private static void recordScanned(long lines, long bytes, BooleanSupplier cancelled) {
+        if (!cancelled.getAsBoolean()) {
+            LINES_SCANNED.record(lines);
+            BYTES_SCANNED.record(bytes);
         }
+    }
+
+    private void findStoredRecords(Shard shard, RecordStore store, QueryMatcher matcher,
+            List<List<String>> expansions, RecordStore.RecordVisitor records, ScanCount scanned,
+            BooleanSupplier cancelled) throws java.io.IOException {
+        RecordStore.Snapshot current = store.snapshot();
+        RecordIndex index = shard.index;
+        Hits previous = shard.lastHits;
+        List<String> words = matcher.getWords();
+        boolean fuzzySearch = expansions != null;
+
+        // The same words searched on the same records: the hits are known already
+        String cacheKey = shard.number + cacheKey(words, fuzzySearch);
+        Hits cached = resultCache.get(cacheKey);
+        if (cached != null && cached.generation == current.getGeneration()) {
+            for (int i = 0; i < cached.ids.length && !cancelled.getAsBoolean(); i++) {
+                records.visit(current, cached.ids[i]);
+            }
+            if (!fuzzySearch) {
+                shard.lastHits = cached;
+            }
+            Metrics.counter("search.cached").increment();
+            return;
+        }
+        // Remember what this search finds, so typing on can filter it instead of searching everything
+        IntArrayList ids = new IntArrayList();
+        RecordStore.RecordVisitor remembering = (snapshot, id) -> {
+            ids.add(id);
+            records.visit(snapshot, id);
+        };
+        // The hits are only valid for the records they were searched in
+        RecordStore.Snapshot searched = current;
+
+        boolean indexed = index != null && !words.isEmpty()
+            && words.stream().allMatch(RecordIndex::canAnswer);
+        if (!fuzzySearch && previous != null && previous.contain(current, words)
+                && (!indexed || previous.ids.length <= MAX_REFINED_HITS)) {
+            // The new search can only narrow the last one: check its hits again, nothing else
+            long bytes = 0;
+            for (int i = 0; i < previous.ids.length && !cancelled.getAsBoolean(); i++) {
+                int id = previous.ids[i];
+                bytes += current.getRecordLength(id);
+                if (current.matches(id, matcher)) {
+                    remembering.visit(current, id);
+                }
+            }
+            Metrics.counter("search.refined").increment();
+            scanned.add(previous.ids.length, bytes);
+        } else {
+            RecordStore.Snapshot fromIndex = index != null
+                ? index.search(words, expansions, remembering, cancelled) : null;
+            if (fromIndex != null) {
+                // Answered from the inverted index, every search word allowed it; it may lag behind current
+                searched = fromIndex;
+                Metrics.counter("search.indexed").increment();
+            } else {
+                // Otherwise scan every record, split in chunks matched in parallel
+                ParallelRecordScanner.scan(current, matcher, remembering, cancelled);
+                Metrics.counter("search.scanned").increment();
+                scanned.add(current.size(), current.getFileLength());
+            }
+        }
+
+        if (!cancelled.getAsBoolean()) {
+            Hits hits = new Hits(searched.getGeneration(), words, ids.toArray());
+            resultCache.put(cacheKey, hits);
+            // Fuzzy hits have words the search did not contain, a longer word could miss them
+            if (!fuzzySearch) {
+                shard.lastHits = hits;
+            }
+        }
+    }
+
+    /**
+     * Same key for the same words in any order, repeated or not. Words are
+     * already lowercased and folded by the matcher.
+     */
+    private static String cacheKey(List<String> words, boolean fuzzySearch) {
+        return (fuzzySearch ? "~" : "=") + String.join("\0", new java.util.TreeSet<>(words));
+    }
+
+    private void forgetHits() {
+        resultCache.clear();
+        for (Shard shard : shards) {
+            shard.lastHits = null;
+        }
+    }
+
+    private static long resultCacheBytes() {
+        long megabytes = DEFAULT_RESULT_CACHE_MB;
+        // The system property wins, so a launcher (or a benchmark fork) can set it without the environment
+        String setting = System.getProperty(SEARCH_CACHE_PROPERTY, System.getenv("SEARCH_CACHE_MB"));
+        if (setting != null && !setting.trim().isEmpty()) {
+            try {
+                // 0 turns the cache off
+                megabytes = Math.max(0, Long.parseLong(setting.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid SEARCH_CACHE_MB value, using " + megabytes + ": " + setting);
+            }
+        }
+        return megabytes << 20;
+    }
+
+    // A line of a records file as results show it
+    static String formatLine(String line) {
+        // Split the line by delimiter and format
+        String[] parts = line.split(DELIMITER);
+        StringBuilder formattedResult = new StringBuilder();
         
-        return results;
+        // Add each element with a separator
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                formattedResult.append(" | ");
+            }
+            formattedResult.append(parts[i].trim());
+        }
+        
+        return formattedResult.toString();
+    }
+
+    /**
+     * The active records file, the one adds go to.
+     */
+    public Path getRecordsPath() {
+        return recordShards.getActive();
     }
 
     private String getRecordsFilePath() {
+        if (recordsFilePath != null) {
+            return recordsFilePath;
+        }
         String filePath = System.getenv("RECORDS_FILEPATH");
         if (filePath == null || filePath.trim().isEmpty()) {
-            System.err.println("Error: RECORDS_FILEPATH environment variable is not set");
-            System.exit(1);
-            return null;
+            throw new IllegalStateException("RECORDS_FILEPATH environment variable is not set");
         }
         return filePath;
     }
 
-    public void backupRecordsFile(String newContent) {
+    /**
+     * Adds content without any dialog (command line, scripts): the content is
+     * saved to destinationFile, then processed exactly like an add from the UI.
+     * Only the record append is queued: adds made back to back are committed
+     * to the records file together. The future completes once the record is
+     * written.
+     */
+    public java.util.concurrent.CompletableFuture<Void> addNewContentAsync(String content, Path destinationFile) {
+        return addNewContentAsync(content, destinationFile, false);
+    }
+
+    /**
+     * @param replaceExisting overwrite destinationFile when it exists; otherwise
+     *        an existing file is never touched and the add fails (records may
+     *        already point to that file)
+     */
+    public java.util.concurrent.CompletableFuture<Void> addNewContentAsync(String content, Path destinationFile,
+            boolean replaceExisting) {
         try {
-            // Get the source file
-            File sourceFile = new File(getRecordsFilePath());
-            
-            // Create backup folder if it doesn't exist
-            File backupFolder = new File(sourceFile.getParent(), "backup");
-            if (!backupFolder.exists()) {
-                if (!backupFolder.mkdir()) {
-                    throw new RuntimeException("Failed to create backup directory");
-                }
-            }
-            
-            // Get current timestamp for filename
-            java.time.LocalDateTime now = java.time.LocalDateTime.now();
-            String timestamp = String.format("%d_%02d_%02d_%02d_%02d_%03d",
-                now.getDayOfMonth(),
-                now.getHour(),
-                now.getMinute(),
-                now.getSecond(),
-                now.getNano() / 1_000_000, // Convert nanos to millis
-                now.getNano() / 1_000_000  // Add this as the actual argument for %03d
+            java.nio.file.Files.write(
+                destinationFile,
+                content.getBytes(StandardCharsets.UTF_8),
+                replaceExisting ? java.nio.file.StandardOpenOption.CREATE : java.nio.file.StandardOpenOption.CREATE_NEW,
+                java.nio.file.StandardOpenOption.WRITE,
+                java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
             );
-            
-            // Create backup filename
-            String originalFileName = sourceFile.getName();
-            String fileNameWithoutExt = originalFileName.substring(0, originalFileName.lastIndexOf('.'));
-            String backupFileName = String.format("%s_backup_%s.back", fileNameWithoutExt, timestamp);
-            
-            // Create backup file path
-            File backupFile = new File(backupFolder, backupFileName);
-            
-            // Create backup of existing file
-            java.nio.file.Files.copy(
-                sourceFile.toPath(),
-                backupFile.toPath(),
-                java.nio.file.StandardCopyOption.REPLACE_EXISTING
-            );
-            
+            return storeNewContent(content, destinationFile.toAbsolutePath().toFile(),
+                AttachmentTransfer.Progress.NONE, () -> false);
         } catch (Exception e) {
-            System.err.println("Error creating backup: " + e.getMessage());
+            System.err.println("Error adding new content: " + e.getMessage());
             e.printStackTrace();
-            throw new RuntimeException("Failed to backup file: " + e.getMessage());
+            throw new RuntimeException("Failed to add new content: " + e.getMessage());
         }
     }
 
-    public boolean addNewContent(String content, javafx.stage.Window parentWindow) {
+    /**
+     * Asks where to save the content and saves it there. Runs the save dialog,
+     * so it must be called on the FX thread.
+     *
+     * @return the saved file, or null when the user cancelled
+     */
+    public String chooseDestination(String content, javafx.stage.Window parentWindow) {
+        return saveTheContent(content, parentWindow);
+    }
+
+    /**
+     * Second half of an add, after {@link #chooseDestination}: copies the files
+     * the content points to next to destinationFile (several at a time),
+     * rewrites it with the copies' paths and queues the record. Meant to run off
+     * the FX thread. The record is only queued once every copy is verified; a
+     * cancelled or failed add leaves no copies and no saved file behind.
+     *
+     * @return completes once the record is written to the records file
+     * @throws java.util.concurrent.CancellationException when cancelled returned true during the copies
+     */
+    public java.util.concurrent.CompletableFuture<Void> storeNewContent(String content, File destinationFile,
+            AttachmentTransfer.Progress progress, BooleanSupplier cancelled) throws java.io.IOException {
+        // Timed until the record is written, copies included; every add goes through here
+        long start = ADD_TIMER.start();
+        java.util.concurrent.CompletableFuture<Void> written;
         try {
-            // First create backup
-            backupRecordsFile(content);
-
-            // Get destination for new file first
-            String savedFilePath = saveTheContent(content, parentWindow);
-            if (savedFilePath != null) {
-                File destinationFile = new File(savedFilePath);
-                File destinationFolder = destinationFile.getParentFile();
-                
-                // Process content lines and copy files
-                String[] lines = content.split("\\R");
-                StringBuilder processedContent = new StringBuilder();
-                
-                for (String line : lines) {
-                    String trimmedLine = line.trim();
-                    if (!trimmedLine.isEmpty()) {
-                        try {
-                            File potentialFile = new File(trimmedLine);
-                            if (potentialFile.exists() && potentialFile.isFile()) {
-                                // Copy file to destination folder
-                                String newFileName = potentialFile.getName();
-                                File copiedFile = new File(destinationFolder, newFileName);
-                                
-                                // Handle file name conflicts
-                                int counter = 1;
-                                while (copiedFile.exists()) {
-                                    String nameWithoutExt = newFileName.substring(0, newFileName.lastIndexOf('.'));
-                                    String extension = newFileName.substring(newFileName.lastIndexOf('.'));
-                                    copiedFile = new File(destinationFolder, nameWithoutExt + "_" + counter + extension);
-                                    counter++;
+            written = appendNewContent(content, destinationFile, progress, cancelled);
+        } catch (java.util.concurrent.CancellationException e) {
+            throw e;
+        } catch (java.io.IOException | RuntimeException e) {
+            ADD_TIMER.fail(start);
+            throw e;
+        }
+        return written.whenComplete((result, error) -> {
+            if (error == null) {
+                ADD_TIMER.stop(start);
+            } else {
+                ADD_TIMER.fail(start);
+            }
+        });
+    }
+
+    private java.util.concurrent.CompletableFuture<Void> appendNewContent(String content, File destinationFile,
+            AttachmentTransfer.Progress progress, BooleanSupplier cancelled) throws java.io.IOException {
+        File destinationFolder = destinationFile.getParentFile();
+        
+        // Process content lines and plan the file copies; attachment lines are filled in once they are stored
+        String[] lines = content.split("\\R");
+        List<String> processedLines = new ArrayList<>();
+        java.util.Map<Integer, Path[]> attachmentLines = new java.util.HashMap<>();
+        java.util.Set<Path> plannedFiles = new java.util.HashSet<>();
+        java.util.Map<Path, Path> storedBySource = new java.util.HashMap<>();
+        java.util.Map<Path, AttachmentStore.Lookup> newCopies = new java.util.LinkedHashMap<>();
+        AttachmentStore store = getAttachmentStore();
+        AttachmentTransfer transfer = new AttachmentTransfer();
+        
+        for (String line : lines) {
+            String trimmedLine = line.trim();
+            if (!trimmedLine.isEmpty()) {
+                try {
+                    File potentialFile = new File(trimmedLine);
+                    if (potentialFile.exists() && potentialFile.isFile()) {
+                        // Copy file to destination folder
+                        String newFileName = potentialFile.getName();
+                        File copiedFile = new File(destinationFolder, newFileName);
+                        
+                        // Handle file name conflicts, with files on disk and earlier attachments of this add
+                        int counter = 1;
+                        while (copiedFile.exists() || plannedFiles.contains(copiedFile.toPath())) {
+                            String nameWithoutExt = newFileName.substring(0, newFileName.lastIndexOf('.'));
+                            String extension = newFileName.substring(newFileName.lastIndexOf('.'));
+                            copiedFile = new File(destinationFolder, nameWithoutExt + "_" + counter + extension);
+                            counter++;
+                        }
+                        
+                        // Content already in the store is linked, not copied again
+                        Path source = potentialFile.toPath().toRealPath();
+                        Path stored = storedBySource.get(source);
+                        if (stored == null) {
+                            try {
+                                AttachmentStore.Lookup lookup = store.lookup(source);
+                                stored = lookup.getExisting();
+                                if (stored == null) {
+                                    stored = store.reserve(source);
+                                    newCopies.put(stored, lookup);
+                                    transfer.add(source, stored);
                                 }
-                                
-                                // Copy the file
-                                java.nio.file.Files.copy(
-                                    potentialFile.toPath(),
-                                    copiedFile.toPath(),
-                                    java.nio.file.StandardCopyOption.COPY_ATTRIBUTES
-                                );
-                                
-                                // Add the new file path to content
-                                processedContent.append(copiedFile.getAbsolutePath()).append(System.lineSeparator());
-                            } else {
-                                // Not a file, keep original line
-                                processedContent.append(trimmedLine).append(System.lineSeparator());
+                            } catch (java.io.IOException e) {
+                                // Store unusable, copy straight to the destination folder as before
+                                System.err.println("Attachment store unavailable: " + e.getMessage());
+                                stored = null;
                             }
-                        } catch (Exception e) {
-                            // If there's any error processing the line, keep original
-                            processedContent.append(trimmedLine).append(System.lineSeparator());
                         }
+                        plannedFiles.add(copiedFile.toPath());
+                        if (stored != null) {
+                            storedBySource.put(source, stored);
+                            attachmentLines.put(processedLines.size(), new Path[] {stored, copiedFile.toPath()});
+                            processedLines.add(null);
+                        } else {
+                            transfer.add(source, copiedFile.toPath());
+                            // Add the new file path to content
+                            processedLines.add(copiedFile.getAbsolutePath());
+                        }
+                    } else {
+                        // Not a file, keep original line
+                        processedLines.add(trimmedLine);
                     }
+                } catch (Exception e) {
+                    // If there's any error processing the line, keep original
+                    processedLines.add(trimmedLine);
                 }
-                
-                // Add the new file path to the processed content
-                processedContent.append(savedFilePath);
-                
-                // Write the processed content to the new file
-                java.nio.file.Files.write(
-                    destinationFile.toPath(),
-                    processedContent.toString().getBytes(StandardCharsets.UTF_8),
-                    java.nio.file.StandardOpenOption.CREATE,
-                    java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
-                );
-                
-                // Format and append to the records file
-                String formattedContent = formatContentForFile(processedContent.toString());
-                File sourceFile = new File(getRecordsFilePath());
-                java.nio.file.Files.write(
-                    sourceFile.toPath(),
-                    (System.lineSeparator() + formattedContent).getBytes(StandardCharsets.UTF_8),
-                    java.nio.file.StandardOpenOption.APPEND
-                );
-                
-                return true; // Return true if save was successful
             }
-            
-            return false; // Return false if user cancelled
-            
+        }
+        
+        // Copy in parallel; nothing is appended unless every copy made it
+        try {
+            transfer.copyAll(progress, cancelled);
+        } catch (java.util.concurrent.CancellationException | java.io.IOException e) {
+            for (Path reserved : newCopies.keySet()) {
+                store.release(reserved);
+            }
+            java.nio.file.Files.deleteIfExists(destinationFile.toPath());
+            throw e;
+        }
+        for (java.util.Map.Entry<Path, AttachmentStore.Lookup> copy : newCopies.entrySet()) {
+            store.add(copy.getKey(), copy.getValue());
+        }
+        
+        // Attachments keep their name in the destination folder as links to the stored copies
+        StringBuilder processedContent = new StringBuilder();
+        for (int i = 0; i < processedLines.size(); i++) {
+            Path[] attachment = attachmentLines.get(i);
+            String processedLine = attachment != null
+                ? AttachmentStore.link(attachment[0], attachment[1]).toAbsolutePath().toString()
+                : processedLines.get(i);
+            processedContent.append(processedLine).append(System.lineSeparator());
+        }
+        
+        // Add the new file path to the processed content
+        processedContent.append(destinationFile.getAbsolutePath());
+        
+        // Write the processed content to the new file
+        java.nio.file.Files.write(
+            destinationFile.toPath(),
+            processedContent.toString().getBytes(StandardCharsets.UTF_8),
+            java.nio.file.StandardOpenOption.CREATE,
+            java.nio.file.StandardOpenOption.TRUNCATE_EXISTING
+        );
+        
+        // Format and append to the records file
+        String formattedContent = formatContentForFile(processedContent.toString());
+        
+        // The appender journals the new bytes before they reach the records file
+        return appendRecord(formattedContent);
+    }
+
+    /**
+     * What the fields of the records are, checked in the background. Started
+     * on first use, the command line never pays for it.
+     */
+    public synchronized FieldCatalog getFieldCatalog() {
+        if (fieldCatalog == null) {
+            // Shards still loading are followed by openShard once they are loaded
+            fieldCatalog = FieldCatalog.forRecords(recordShards.getActive());
+            for (Shard shard : shards) {
+                if (shard.store != null) {
+                    fieldCatalog.follow(shard.store);
+                }
+            }
+        }
+        return fieldCatalog;
+    }
+
+    private synchronized AttachmentStore getAttachmentStore() {
+        if (attachmentStore == null) {
+            // Every shard is in the same folder, they share the store
+            attachmentStore = AttachmentStore.forRecords(recordShards.getActive());
+        }
+        return attachmentStore;
+    }
+
+    private synchronized BackupJournal getBackupJournal() {
+        if (backupJournal == null) {
+            // Only the active shard changes, it is the one journaled
+            backupJournal = new BackupJournal(recordShards.getActive());
+        }
+        return backupJournal;
+    }
+
+    private synchronized RecordAppender getRecordAppender() throws java.io.IOException {
+        if (recordShards.isActiveFull()) {
+            Path next = recordShards.rollOver();
+            if (next != null) {
+                // Adds already queued still go to the full shard, the next ones to the new shard
+                closeAppender();
+                backupJournal = null;
+                shards.add(new Shard(shards.size(), next));
+            }
+        }
+        if (recordAppender == null) {
+            Path active = recordShards.getActive();
+            activeShardStarted = java.nio.file.Files.exists(active) && java.nio.file.Files.size(active) > 0;
+            // Keeps the records file open and commits adds in groups, see RECORDS_FSYNC
+            recordAppender = RecordAppender.open(active, getBackupJournal());
+            Shard shard = shards.get(shards.size() - 1);
+            if (shard.store == null) {
+                // A new shard, or one whose file the appender just created: load it to search it from memory
+                openShard(shard);
+            }
+        }
+        return recordAppender;
+    }
+
+    /**
+     * Queues a formatted record for the active shard.
+     */
+    private synchronized java.util.concurrent.CompletableFuture<Void> appendRecord(String formattedContent)
+            throws java.io.IOException {
+        RecordAppender appender = getRecordAppender();
+        // A new records file starts with the record, not with an empty line
+        String appendedContent = activeShardStarted
+            ? System.lineSeparator() + formattedContent : formattedContent;
+        activeShardStarted = true;
+        return appender.append(appendedContent);
+    }
+
+    /**
+     * Writes and syncs queued adds, releases the records file, saves the field
+     * catalog and stops watching the records files. Adds made after this open
+     * the records file again and still make their records searchable.
+     */
+    public synchronized void close() {
+        closeAppender();
+        if (fieldCatalog != null) {
+            fieldCatalog.flush();
+        }
+        for (Shard shard : shards) {
+            RecordStore store = shard.store;
+            if (store == null) {
+                continue;
+            }
+            try {
+                store.close();
+            } catch (Exception e) {
+                System.err.println("Error closing records watcher: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Writes and syncs queued adds and releases the records file. Adds made
+     * after this open it again.
+     */
+    private void closeAppender() {
+        if (recordAppender == null) {
+            return;
+        }
+        try {
+            recordAppender.close();
         } catch (Exception e) {
-            System.err.println("Error adding new content: " + e.getMessage());
-            e.printStackTrace();
-            throw new RuntimeException("Failed to add new content: " + e.getMessage());
+            System.err.println("Error closing records file: " + e.getMessage());
+        }
+        recordAppender = null;
+        refreshRecords();
+    }
+
+    /**
+     * Filename the content would be saved as, built from its first words.
+     */
+    public String suggestFilename(String content) {
+        return generateSuggestedFilename(content);
+    }
+
+    /**
+     * Makes records appended by this model searchable right away, without
+     * waiting for the file watcher.
+     */
+    public void refreshRecordsNow() {
+        refreshRecords();
+    }
+
+    private void refreshRecords() {
+        for (Shard shard : shards) {
+            RecordStore store = shard.store;
+            if (store == null) {
+                continue;
+            }
+            try {
+                // Make the new record searchable right away instead of waiting for the watcher
+                store.refresh();
+            } catch (Exception e) {
+                System.err.println("Error refreshing records: " + e.getMessage());
+            }
         }
     }
 
@@ -294,8 +1121,8 @@ public class SearchModel {
         
         for (String line : lines) {
             String trimmedLine = line.trim();
-            // Skip if line is a file path
-            if (new File(trimmedLine).exists()) {
+            // Skip if line is a file path (judged by its shape, no disk access)
+            if (FieldCatalog.guessKind(trimmedLine) == FieldCatalog.Kind.PATH) {
                 continue;
             }
             
@@ -0,0 +1,177 @@
+package com.archiver.models;
+
+import com.archiver.utils.IntArrayList;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Finds the vocabulary terms closest to a misspelled word.
+ *
+ * Every term is split into its trigrams (three char windows of the term padded
+ * with '$' at both ends), and each trigram lists the terms it occurs in. One
+ * edit changes at most three trigrams, so a term within n edits of the word
+ * shares all but 3n of the word's trigrams with it. Only terms sharing enough
+ * trigrams get the (comparatively expensive) edit distance computed.
+ *
+ * The same lists find the terms containing a word: such a term has every
+ * trigram inside the word, so only the terms of its rarest one are checked.
+ */
+public class TrigramIndex {
+    private final List<String> terms = new ArrayList<>();
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final Map<String, IntArrayList> termsByTrigram = new HashMap<>();
+
+    /**
+     * Adds a term; a term added before is left as it is, every term is listed
+     * once however often it is added.
+     */
+    public void add(String term) {
+        int id = terms.size();
+        if (ids.putIfAbsent(term, id) != null) {
+            return;
+        }
+        terms.add(term);
+        for (String trigram : trigrams(term)) {
+            termsByTrigram.computeIfAbsent(trigram, k -> new IntArrayList(4)).add(id);
+        }
+    }
+
+    public int size() {
+        return terms.size();
+    }
+
+    /**
+     * Terms other than word itself at most maxDistance edits away from it
+     * (insertions, deletions, substitutions and swaps of adjacent chars),
+     * nearest first, at most limit of them.
+     */
+    public List<String> nearest(String word, int maxDistance, int limit) {
+        return nearest(word, maxDistance, limit, term -> true);
+    }
+
+    /**
+     * Like {@link #nearest(String, int, int)}, only counting the terms accepted.
+     */
+    public List<String> nearest(String word, int maxDistance, int limit, Predicate<String> accepted) {
+        List<String> result = new ArrayList<>();
+        if (maxDistance <= 0 || terms.isEmpty()) {
+            return result;
+        }
+        Set<String> wordTrigrams = trigrams(word);
+        int[] shared = new int[terms.size()];
+        IntArrayList touched = new IntArrayList();
+        for (String trigram : wordTrigrams) {
+            IntArrayList ids = termsByTrigram.get(trigram);
+            if (ids == null) {
+                continue;
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                if (shared[ids.get(i)]++ == 0) {
+                    touched.add(ids.get(i));
+                }
+            }
+        }
+
+        int needed = Math.max(1, wordTrigrams.size() - 3 * maxDistance);
+        List<String> candidates = new ArrayList<>();
+        Map<String, Integer> distances = new HashMap<>();
+        for (int i = 0; i < touched.size(); i++) {
+            int id = touched.get(i);
+            String term = terms.get(id);
+            if (shared[id] < needed || Math.abs(term.length() - word.length()) > maxDistance || term.equals(word)
+                    || !accepted.test(term)) {
+                continue;
+            }
+            int distance = distance(word, term, maxDistance);
+            if (distance <= maxDistance) {
+                candidates.add(term);
+                distances.put(term, distance);
+            }
+        }
+        candidates.sort(Comparator.comparingInt((String term) -> distances.get(term))
+            .thenComparing(Comparator.naturalOrder()));
+        return candidates.subList(0, Math.min(limit, candidates.size()));
+    }
+
+    /**
+     * Terms containing word, or null when word is shorter than a trigram and
+     * any term may contain it.
+     */
+    public Set<String> containing(String word) {
+        if (word.length() < 3) {
+            return null;
+        }
+        // Trigrams inside the word, without the padding of its ends
+        IntArrayList rarest = null;
+        for (int i = 0; i + 3 <= word.length(); i++) {
+            IntArrayList ids = termsByTrigram.get(word.substring(i, i + 3));
+            if (ids == null) {
+                return new LinkedHashSet<>();
+            }
+            if (rarest == null || ids.size() < rarest.size()) {
+                rarest = ids;
+            }
+        }
+        Set<String> result = new LinkedHashSet<>();
+        for (int i = 0; i < rarest.size(); i++) {
+            String term = terms.get(rarest.get(i));
+            if (term.contains(word)) {
+                result.add(term);
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> trigrams(String term) {
+        String padded = "$" + term + "$";
+        Set<String> trigrams = new LinkedHashSet<>();
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            trigrams.add(padded.substring(i, i + 3));
+        }
+        if (trigrams.isEmpty()) {
+            trigrams.add(padded);
+        }
+        return trigrams;
+    }
+
+    /**
+     * Edit distance counting a swap of adjacent chars as one edit, or max + 1
+     * as soon as it is known to be larger than max.
+     */
+    static int distance(String a, String b, int max) {
+        int[] previous2 = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, previous2[j - 2] + 1);
+                }
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > max) {
+                return max + 1;
+            }
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+        return previous[b.length()];
+    }
+}
@@ -0,0 +1,22 @@
+package com.archiver.utils;
+
+/**
+ * What JMX shows of a {@link Histogram}.
+ */
+public interface HistogramMBean {
+    long getCount();
+
+    long getTotal();
+
+    double getMean();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getMax();
+
+    void reset();
+}
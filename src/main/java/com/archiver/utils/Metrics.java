@@ -0,0 +1,219 @@
+package com.archiver.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Performance numbers of the application, published over JMX under
+ * "com.archiver" (jconsole, VisualVM, any JMX agent can read them):
+ *
+ * <ul>
+ * <li>operation timers, type=Operation: latency percentiles and errors</li>
+ * <li>histograms, type=Histogram: distributions such as lines scanned per search</li>
+ * <li>counters and gauges, all as attributes of type=Values</li>
+ * </ul>
+ *
+ * Metrics are created on first use by name and live as long as the JVM. With
+ * METRICS_LOG_SECONDS set, every metric is also written to stderr at that
+ * interval.
+ */
+public final class Metrics {
+    private static final String DOMAIN = "com.archiver";
+
+    private static final Map<String, OperationTimer> TIMERS = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, LongSupplier> GAUGES = new ConcurrentHashMap<>();
+
+    // Registers the beans and writes the log dump; starting the platform MBean server takes a few hundred
+    // milliseconds, that is kept off whichever thread first asks for a metric (often the one showing the window)
+    private static final ScheduledExecutorService PUBLISHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-publisher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        register("Values", null, new Values());
+        startLogging();
+    }
+
+    private Metrics() {
+    }
+
+    public static OperationTimer timer(String name) {
+        return TIMERS.computeIfAbsent(name, key -> register("Operation", key, new OperationTimer()));
+    }
+
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> register("Histogram", key, new Histogram()));
+    }
+
+    public static LongAdder counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> new LongAdder());
+    }
+
+    /**
+     * Publishes a value read whenever it is asked for. A later gauge with the
+     * same name replaces the earlier one.
+     */
+    public static void gauge(String name, LongSupplier value) {
+        GAUGES.put(name, value);
+    }
+
+    /**
+     * Publishes bean over JMX shortly, it records right away.
+     */
+    private static <T> T register(String type, String name, T bean) {
+        PUBLISHER.execute(() -> {
+            try {
+                String objectName = DOMAIN + ":type=" + type + (name != null ? ",name=" + ObjectName.quote(name) : "");
+                ManagementFactory.getPlatformMBeanServer().registerMBean(bean, new ObjectName(objectName));
+            } catch (Exception e) {
+                // Still recorded, and still in the log dump, only not visible over JMX
+                System.err.println("Could not publish metric " + (name != null ? name : type) + " over JMX: "
+                    + e.getMessage());
+            }
+        });
+        return bean;
+    }
+
+    private static void startLogging() {
+        String setting = System.getenv("METRICS_LOG_SECONDS");
+        if (setting == null || setting.trim().isEmpty()) {
+            return;
+        }
+        long seconds;
+        try {
+            seconds = Long.parseLong(setting.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid METRICS_LOG_SECONDS value, not logging metrics: " + setting);
+            return;
+        }
+        if (seconds <= 0) {
+            return;
+        }
+        PUBLISHER.scheduleAtFixedRate(() -> {
+            for (String line : describe()) {
+                System.err.println("[metrics] " + line);
+            }
+        }, seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * One line per metric, sorted by name.
+     */
+    public static List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        for (Map.Entry<String, OperationTimer> entry : new TreeMap<>(TIMERS).entrySet()) {
+            OperationTimer timer = entry.getValue();
+            lines.add(String.format("%s count=%d errors=%d mean=%.0fus p50=%dus p90=%dus p99=%dus max=%dus",
+                entry.getKey(), timer.getCount(), timer.getErrors(), timer.getMeanMicros(), timer.getP50Micros(),
+                timer.getP90Micros(), timer.getP99Micros(), timer.getMaxMicros()));
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            Histogram histogram = entry.getValue();
+            lines.add(String.format("%s count=%d total=%d mean=%.1f p50=%d p90=%d p99=%d max=%d",
+                entry.getKey(), histogram.getCount(), histogram.getTotal(), histogram.getMean(),
+                histogram.getP50(), histogram.getP90(), histogram.getP99(), histogram.getMax()));
+        }
+        for (Map.Entry<String, Long> entry : values().entrySet()) {
+            lines.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return lines;
+    }
+
+    private static Map<String, Long> values() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry : COUNTERS.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().sum());
+        }
+        for (String name : GAUGES.keySet()) {
+            values.put(name, readGauge(name));
+        }
+        return values;
+    }
+
+    private static long readGauge(String name) {
+        try {
+            return GAUGES.get(name).getAsLong();
+        } catch (RuntimeException e) {
+            return -1; // A gauge must never break the one reading it
+        }
+    }
+
+    /**
+     * Counters and gauges as read-only attributes, whatever their names are.
+     */
+    private static final class Values implements DynamicMBean {
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LongAdder counter = COUNTERS.get(attribute);
+            if (counter != null) {
+                return counter.sum();
+            }
+            if (GAUGES.containsKey(attribute)) {
+                return readGauge(attribute);
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the interface expects
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<>();
+            for (String name : values().keySet()) {
+                String description = COUNTERS.containsKey(name) ? "Counter" : "Gauge";
+                attributes.add(new MBeanAttributeInfo(name, "long", description, true, false, false));
+            }
+            return new MBeanInfo(Values.class.getName(), "Counters and gauges",
+                attributes.toArray(new MBeanAttributeInfo[0]), null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.archiver.utils;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies of one operation, in microseconds, and how many times it failed.
+ *
+ * <pre>
+ * long start = timer.start();
+ * ... the operation ...
+ * timer.stop(start);      // or timer.fail(start) when it threw
+ * </pre>
+ */
+public class OperationTimer implements OperationTimerMBean {
+    private final Histogram micros = new Histogram();
+    private final LongAdder errors = new LongAdder();
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /** Records a completed operation started at start. */
+    public void stop(long start) {
+        micros.record((System.nanoTime() - start) / 1000);
+    }
+
+    /** Records a failed operation started at start; it counts in the latencies too. */
+    public void fail(long start) {
+        errors.increment();
+        stop(start);
+    }
+
+    @Override
+    public long getCount() {
+        return micros.getCount();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMicros() {
+        return micros.getMean();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return micros.getP50();
+    }
+
+    @Override
+    public long getP90Micros() {
+        return micros.getP90();
+    }
+
+    @Override
+    public long getP99Micros() {
+        return micros.getP99();
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return micros.getMax();
+    }
+
+    @Override
+    public void reset() {
+        micros.reset();
+        errors.reset();
+    }
+}
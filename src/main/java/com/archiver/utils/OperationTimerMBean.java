@@ -0,0 +1,22 @@
+package com.archiver.utils;
+
+/**
+ * What JMX shows of an {@link OperationTimer}, latencies in microseconds.
+ */
+public interface OperationTimerMBean {
+    long getCount();
+
+    long getErrors();
+
+    double getMeanMicros();
+
+    long getP50Micros();
+
+    long getP90Micros();
+
+    long getP99Micros();
+
+    long getMaxMicros();
+
+    void reset();
+}
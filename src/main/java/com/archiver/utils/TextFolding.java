@@ -0,0 +1,97 @@
+package com.archiver.utils;
+
+import java.text.Normalizer;
+import java.util.regex.Pattern;
+
+/**
+ * Accent and case folding for searches: "Itaú", "ITAU" and "itaú" all fold
+ * to "itau". Accented letters are decomposed into a base letter and combining
+ * marks, the marks are dropped and what is left is lowercased. Letters that
+ * do not decompose ("ß", "ø") are only lowercased.
+ *
+ * Latin letters (everything Portuguese needs) are folded through a table
+ * computed once; Normalizer only runs for text with other scripts.
+ */
+public final class TextFolding {
+    private static final Pattern COMBINING_MARKS = Pattern.compile("\\p{Mn}+");
+    // Up to the end of Latin Extended-B
+    private static final int TABLE_SIZE = 0x250;
+    // Folded form of each char below TABLE_SIZE, 0 where it does not fold to a single char
+    private static final char[] TABLE = new char[TABLE_SIZE];
+
+    static {
+        for (char c = 1; c < TABLE_SIZE; c++) {
+            String folded = normalize(String.valueOf(c));
+            if (folded.length() == 1) {
+                TABLE[c] = folded.charAt(0);
+            }
+        }
+    }
+
+    private TextFolding() {
+    }
+
+    public static String fold(String text) {
+        if (isAscii(text)) {
+            return text.toLowerCase();
+        }
+        char[] folded = new char[text.length()];
+        for (int i = 0; i < folded.length; i++) {
+            char c = text.charAt(i);
+            if (c >= TABLE_SIZE || TABLE[c] == 0) {
+                return normalize(text);
+            }
+            folded[i] = TABLE[c];
+        }
+        return new String(folded);
+    }
+
+    /**
+     * Folds UTF-8 bytes [0, length) into out as UTF-8, without decoding them
+     * to a String. Only works for Latin text: out must have room for
+     * 2 * length bytes.
+     *
+     * @return the folded length, or -1 when the text has other chars and
+     *         {@link #fold(String)} is needed
+     */
+    public static int foldUtf8(byte[] bytes, int length, byte[] out) {
+        int folded = 0;
+        for (int i = 0; i < length; i++) {
+            int b = bytes[i];
+            int c;
+            if (b >= 0) {
+                c = b;
+            } else if ((b & 0xE0) == 0xC0 && i + 1 < length && (bytes[i + 1] & 0xC0) == 0x80) {
+                c = ((b & 0x1F) << 6) | (bytes[++i] & 0x3F);
+            } else {
+                return -1; // Three or four byte sequence, or malformed
+            }
+            char f = c < TABLE_SIZE ? TABLE[c] : 0;
+            if (f == 0) {
+                return -1;
+            }
+            // A char below TABLE_SIZE never folds to more than two bytes
+            if (f < 0x80) {
+                out[folded++] = (byte) f;
+            } else {
+                out[folded++] = (byte) (0xC0 | (f >> 6));
+                out[folded++] = (byte) (0x80 | (f & 0x3F));
+            }
+        }
+        return folded;
+    }
+
+    private static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return COMBINING_MARKS.matcher(decomposed).replaceAll("").toLowerCase();
+    }
+
+    public static boolean isAscii(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -6,20 +6,29 @@ import java.io.File;
 import java.io.InputStream;
 import java.net.URI;
 import java.util.Base64;
+import java.util.List;
 
 import com.archiver.controllers.MainController;
 
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.concurrent.Worker;
 import javafx.concurrent.Worker.State;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.CheckBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.ProgressBar;
 import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextArea;
 import javafx.scene.control.TextField;
 import javafx.scene.control.Tooltip;
+import javafx.scene.input.MouseEvent;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.Priority;
@@ -27,6 +36,7 @@ import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.scene.web.WebView;
 import javafx.stage.FileChooser;
+import javafx.util.Duration;
 import netscape.javascript.JSObject;
 
 public class MainView {
@@ -36,57 +46,33 @@ public class MainView {
     private TextArea lowerTextArea;
     private Button searchButton;
     private Button cleanButton;
+    private CheckBox rankedCheckBox;
+    private CheckBox fuzzyCheckBox;
     private Button addButton;
     private Button loadFileButton;
-    private VBox resultsContainer;
-    private Label selectedLabel;
+    private Button cancelAddButton;
+    private ProgressBar addProgressBar;
+    private Label addStatusLabel;
+    private HBox addProgressBox;
+    private ListView<String> resultsList;
     private static final String NORMAL_STYLE = "-fx-padding: 5; -fx-background-color: #f0f0f0; -fx-background-radius: 5;";
     private static final String SELECTED_STYLE = "-fx-padding: 5; -fx-background-color: #0096ff; -fx-background-radius: 5; -fx-text-fill: white;";
+    // Rows left below the last rendered one when the next page of results is requested
+    private static final int LOAD_MORE_THRESHOLD = 50;
+    // Result count when the next page was last requested: every cell near the end asks, one request per page is enough
+    private int loadMoreRequestedAt = -1;
+    // Pause in typing after which what is typed is searched
+    private static final Duration LIVE_SEARCH_DELAY = Duration.millis(250);
+    private final PauseTransition liveSearchDelay = new PauseTransition(LIVE_SEARCH_DELAY);
+    private ScrollPane webViewScrollPane;
+    // Created on the first item shown, see ensureFoundItemsView
     private WebView foundItemsView;
+    // WebKit only keeps a weak reference to the bridge, this one keeps it alive
+    private final JavaApp javaApp = new JavaApp();
     
     // Default base64 encoded small folder icon (16x16 pixels)
     private static final String DEFAULT_FOLDER_ICON = "iVBORw0KGgoAAAANSUhEUgAAABAAAAAQCAYAAAAf8/9hAAAABHNCSVQICAgIfAhkiAAAAAlwSFlzAAAAbwAAAG8B8aLcQwAAABl0RVh0U29mdHdhcmUAd3d3Lmlua3NjYXBlLm9yZ5vuPBoAAAB5SURBVDiNY2AYBYMPMBKrMCsr638GBgYGXl5eZiIMwKqZiYGBgaG5uZmBl5eXCZciFxcXBlwuYMKjGQYYcRqAR/N/UVFR7AYQoxkGWPBpxqUZwwBiNcMAM7KzSdWMYgCxmmEAb0Ai0TB4AKYBpGhGMYAUzSBQUVExAAYYc+4EGH/GAAAAAElFTkSuQmCC";
     
-    private static final String FOLDER_ICON_BASE64;
-    
-    static {
-        String iconBase64;
-        try {
-            System.out.println("Attempting to load folder icon...");
-            InputStream is = MainView.class.getResourceAsStream("/images/folder-icon.png");
-            if (is != null) {
-                try {
-                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                    int nRead;
-                    byte[] data = new byte[1024];
-                    while ((nRead = is.read(data, 0, data.length)) != -1) {
-                        buffer.write(data, 0, nRead);
-                    }
-                    buffer.flush();
-                    iconBase64 = Base64.getEncoder().encodeToString(buffer.toByteArray());
-                    is.close();
-                    System.out.println("Successfully loaded folder icon from resources");
-                } catch (Exception e) {
-                    System.err.println("Error reading folder icon file: " + e.getMessage());
-                    System.err.println("Stack trace:");
-                    e.printStackTrace();
-                    iconBase64 = DEFAULT_FOLDER_ICON;
-                }
-            } else {
-                System.err.println("Folder icon not found in resources at: /images/folder-icon.png");
-                System.err.println("Expected path: src/main/resources/images/folder-icon.png");
-                System.err.println("Using default folder icon instead");
-                iconBase64 = DEFAULT_FOLDER_ICON;
-            }
-        } catch (Exception e) {
-            System.err.println("Error loading folder icon: " + e.getMessage());
-            System.err.println("Stack trace:");
-            e.printStackTrace();
-            iconBase64 = DEFAULT_FOLDER_ICON;
-        }
-        FOLDER_ICON_BASE64 = iconBase64;
-    }
-
     public MainView(MainController controller) {
         this.controller = controller;
         
@@ -99,6 +85,10 @@ public class MainView {
         searchField.setPrefWidth(300);
         searchButton = new Button("Search");
         cleanButton = new Button("Clean");
+        rankedCheckBox = new CheckBox("Best matches first");
+        rankedCheckBox.setTooltip(new Tooltip("Show only the best matches, ranked by relevance"));
+        fuzzyCheckBox = new CheckBox("Tolerate typos");
+        fuzzyCheckBox.setTooltip(new Tooltip("Also find words a few letters off from the ones typed"));
         
         // Add Enter key handler to search field
         searchField.setOnKeyPressed(event -> {
@@ -106,8 +96,14 @@ public class MainView {
                 searchButton.fire(); // This triggers the search button's action
             }
         });
+
+        // Search as the user types, once typing pauses; every key restarts the wait
+        liveSearchDelay.setOnFinished(e -> controller.handleLiveSearch());
+        searchField.textProperty().addListener((observable, oldText, newText) -> liveSearchDelay.playFromStart());
+        rankedCheckBox.setOnAction(e -> controller.handleLiveSearch());
+        fuzzyCheckBox.setOnAction(e -> controller.handleLiveSearch());
         
-        searchBar.getChildren().addAll(searchField, searchButton, cleanButton);
+        searchBar.getChildren().addAll(searchField, searchButton, cleanButton, rankedCheckBox, fuzzyCheckBox);
         searchBar.setPadding(new Insets(10));
         searchBar.setAlignment(Pos.CENTER_LEFT);
         mainLayout.setTop(searchBar);
@@ -118,44 +114,34 @@ public class MainView {
         leftPanel.setStyle("-fx-border-color: black; -fx-border-width: 1;");
         Tooltip.install(leftPanel, new Tooltip("leftPanel (VBox)"));
         
-        resultsContainer = new VBox(5);
-        resultsContainer.setPadding(new Insets(10));
-        Tooltip.install(resultsContainer, new Tooltip("resultsContainer (VBox)"));
-        leftPanel.getChildren().add(resultsContainer);
-
-        // Wrap leftPanel in ScrollPane
-        ScrollPane leftScrollPane = new ScrollPane(leftPanel);
-        leftScrollPane.setFitToWidth(true);
-        leftScrollPane.setPrefViewportWidth(300);
-        leftScrollPane.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
-        leftScrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
-        mainLayout.setLeft(leftScrollPane);
+        // Virtualized list: only the visible rows get a cell, however many hits there are
+        resultsList = new ListView<>();
+        resultsList.setPadding(new Insets(10));
+        resultsList.setCellFactory(list -> new ResultCell());
+        resultsList.getSelectionModel().selectedItemProperty().addListener((obs, old, selected) -> {
+            if (selected != null) {
+                controller.handleItemSelection(selected);
+            }
+        });
+        Tooltip.install(resultsList, new Tooltip("resultsList (ListView)"));
+        VBox.setVgrow(resultsList, Priority.ALWAYS);
+        leftPanel.getChildren().add(resultsList);
+        mainLayout.setLeft(leftPanel);
 
         // Center panel
         VBox centerPanel = new VBox(10);
         centerPanel.setPadding(new Insets(10));
         Tooltip.install(centerPanel, new Tooltip("centerPanel (VBox)"));
         
-        // Initialize WebView with ScrollPane
-        foundItemsView = new WebView();
-        foundItemsView.setPrefHeight(200);
-        Tooltip.install(foundItemsView, new Tooltip("foundItemsView (WebView)"));
-        
-        // Enable JavaScript and add bridge
-        foundItemsView.getEngine().setJavaScriptEnabled(true);
-        
-        // Add JavaScript bridge for handling links
-        foundItemsView.getEngine().getLoadWorker().stateProperty().addListener((obs, old, newState) -> {
-            if (newState == State.SUCCEEDED) {
-                JSObject window = (JSObject) foundItemsView.getEngine().executeScript("window");
-                window.setMember("javaApp", new JavaApp());
-            }
-        });
-
-        ScrollPane webViewScrollPane = new ScrollPane(foundItemsView);
+        // The WebView (and WebKit behind it) is only created when there is something to show in it,
+        // starting it takes longer than building the rest of the window
+        Label foundItemsPlaceholder = new Label("Found items will be displayed here");
+        foundItemsPlaceholder.setPadding(new Insets(10));
+        webViewScrollPane = new ScrollPane(foundItemsPlaceholder);
         webViewScrollPane.setFitToWidth(true);
         webViewScrollPane.setFitToHeight(true);
         webViewScrollPane.setVbarPolicy(ScrollPane.ScrollBarPolicy.AS_NEEDED);
+        webViewScrollPane.setPrefHeight(200);
         VBox.setVgrow(webViewScrollPane, Priority.ALWAYS);
 
         lowerTextArea = new TextArea();
@@ -172,7 +158,18 @@ public class MainView {
         Region spacer = new Region();
         HBox.setHgrow(spacer, Priority.ALWAYS);
 
-        buttonBox.getChildren().addAll(loadFileButton, spacer, addButton);
+        // Progress of an add running in the background, only shown while it runs
+        addProgressBar = new ProgressBar(0);
+        addProgressBar.setPrefWidth(200);
+        addStatusLabel = new Label();
+        cancelAddButton = new Button("Cancel");
+        addProgressBox = new HBox(10, addProgressBar, addStatusLabel, cancelAddButton);
+        addProgressBox.setAlignment(Pos.CENTER_LEFT);
+        addProgressBox.setVisible(false);
+        addProgressBox.setManaged(false);
+
+        buttonBox.getChildren().addAll(loadFileButton, spacer, addProgressBox, addButton);
+        buttonBox.setSpacing(10);
         buttonBox.setPadding(new Insets(5, 0, 0, 0));
         Tooltip.install(buttonBox, new Tooltip("buttonBox (HBox)"));
 
@@ -183,8 +180,13 @@ public class MainView {
         searchField.setPromptText("Enter search term...");
 
         // Event handlers
-        searchButton.setOnAction(e -> controller.handleSearch());
+        searchButton.setOnAction(e -> {
+            // Searched right away, the pending live search would only repeat it
+            liveSearchDelay.stop();
+            controller.handleSearch();
+        });
         cleanButton.setOnAction(e -> controller.handleClean());
+        cancelAddButton.setOnAction(e -> controller.handleCancelAdd());
         addButton.setOnAction(e -> {
             String content = lowerTextArea.getText().trim();
             if (!content.isEmpty()) {
@@ -240,6 +242,9 @@ public class MainView {
 
     public void setFoundItemsText(String content) {
         if (content == null || content.trim().isEmpty()) {
+            if (foundItemsView == null) {
+                return; // Still showing the placeholder
+            }
             String emptyHtml = createHtmlContent("Found items will be displayed here");
             foundItemsView.getEngine().loadContent(emptyHtml);
             return;
@@ -247,7 +252,45 @@ public class MainView {
 
         // Convert content to HTML with styled links
         String htmlContent = createHtmlContent(content);
-        foundItemsView.getEngine().loadContent(htmlContent);
+        ensureFoundItemsView().getEngine().loadContent(htmlContent);
+    }
+
+    private WebView ensureFoundItemsView() {
+        if (foundItemsView != null) {
+            return foundItemsView;
+        }
+        foundItemsView = new WebView();
+        foundItemsView.setPrefHeight(200);
+        Tooltip.install(foundItemsView, new Tooltip("foundItemsView (WebView)"));
+        
+        // Enable JavaScript and add bridge
+        foundItemsView.getEngine().setJavaScriptEnabled(true);
+        
+        // Add JavaScript bridge for handling links
+        foundItemsView.getEngine().getLoadWorker().stateProperty().addListener((obs, old, newState) -> {
+            if (newState == State.SUCCEEDED) {
+                JSObject window = (JSObject) foundItemsView.getEngine().executeScript("window");
+                window.setMember("javaApp", javaApp);
+                // Fill the visible part of the preview with the files' next pieces
+                foundItemsView.getEngine().executeScript("checkPreviews()");
+            }
+        });
+        webViewScrollPane.setContent(foundItemsView);
+        return foundItemsView;
+    }
+
+    /**
+     * Appends a piece of a file's text to the element with the given id in the
+     * preview, without loading the document again.
+     *
+     * @param done true when this was the file's last piece
+     */
+    public void appendPreviewChunk(String elementId, String html, boolean done) {
+        if (foundItemsView == null) {
+            return; // Nothing was shown yet, so no preview is waiting for it
+        }
+        JSObject window = (JSObject) foundItemsView.getEngine().executeScript("window");
+        window.call("appendPreview", elementId, html, done);
     }
 
     private String createHtmlContent(String content) {
@@ -282,6 +325,24 @@ public class MainView {
             .append("function openUrl(url) { javaApp.openUrl(url); }")
             .append("function openFile(path) { javaApp.openFile(path); }")
             .append("function openFolder(path) { javaApp.openFolder(path); }")
+            // Files with more text ask for their next piece when their end is less than a screen away
+            .append("function checkPreviews() {")
+            .append("  var pending = document.querySelectorAll('.preview-pending');")
+            .append("  for (var i = 0; i < pending.length; i++) {")
+            .append("    if (pending[i].getBoundingClientRect().bottom < 2 * window.innerHeight) {")
+            .append("      javaApp.morePreview(pending[i].id);")
+            .append("    }")
+            .append("  }")
+            .append("}")
+            .append("function appendPreview(id, html, done) {")
+            .append("  var element = document.getElementById(id);")
+            .append("  if (!element) { return; }")
+            .append("  element.insertAdjacentHTML('beforeend', html);")
+            .append("  if (done) { element.classList.remove('preview-pending'); }")
+            .append("  checkPreviews();")
+            .append("}")
+            .append("window.addEventListener('scroll', checkPreviews);")
+            .append("window.addEventListener('resize', checkPreviews);")
             .append("</script>");
         html.append("</head><body><div class='text-content'>");
 
@@ -327,6 +388,10 @@ public class MainView {
                              e.getMessage());
             }
         }
+
+        public void morePreview(String elementId) {
+            controller.handleMorePreview(elementId);
+        }
     }
 
     public void showErrorAlert(String title, String header, String content) {
@@ -351,6 +416,14 @@ public class MainView {
         return scene;
     }
 
+    public boolean isRankedSearch() {
+        return rankedCheckBox.isSelected();
+    }
+
+    public boolean isFuzzySearch() {
+        return fuzzyCheckBox.isSelected();
+    }
+
     public String getSearchText() {
         return searchField.getText();
     }
@@ -359,34 +432,77 @@ public class MainView {
         return lowerTextArea.getText();
     }
 
+    /**
+     * Shows the progress of a background add and blocks new adds until it ends.
+     */
+    public void showAddProgress(Worker<?> add) {
+        addProgressBar.progressProperty().bind(add.progressProperty());
+        addStatusLabel.textProperty().bind(add.messageProperty());
+        addProgressBox.setVisible(true);
+        addProgressBox.setManaged(true);
+        addButton.setDisable(true);
+    }
+
+    public void hideAddProgress() {
+        addProgressBar.progressProperty().unbind();
+        addStatusLabel.textProperty().unbind();
+        addProgressBox.setVisible(false);
+        addProgressBox.setManaged(false);
+        addButton.setDisable(false);
+    }
+
     public void clearResults() {
-        resultsContainer.getChildren().clear();
-        selectedLabel = null;
+        resultsList.getItems().clear();
+        loadMoreRequestedAt = -1;
     }
 
     public void addResultItem(String result) {
-        Label resultLabel = new Label(result);
-        resultLabel.setWrapText(true);
-        resultLabel.setStyle(NORMAL_STYLE);
-        resultLabel.setMaxWidth(280);
-        
-        resultLabel.setOnMouseClicked(e -> handleLabelSelection(resultLabel));
-        
-        resultsContainer.getChildren().add(resultLabel);
+        resultsList.getItems().add(result);
     }
 
-    private void handleLabelSelection(Label clickedLabel) {
-        if (selectedLabel != null) {
-            selectedLabel.setStyle(NORMAL_STYLE);
+    public void addResultItems(List<String> results) {
+        resultsList.getItems().addAll(results);
+    }
+
+    // Result row: wrapped text with the same look the result labels used to have
+    private class ResultCell extends ListCell<String> {
+        ResultCell() {
+            setWrapText(true);
+            setPrefWidth(0);
+            setMaxWidth(280);
+
+            // Clicking the selected row again unselects it and clears the preview
+            addEventFilter(MouseEvent.MOUSE_PRESSED, e -> {
+                if (!isEmpty() && isSelected()) {
+                    e.consume();
+                    resultsList.getSelectionModel().clearSelection();
+                    clearFoundItemsText();
+                }
+            });
         }
-        
-        if (selectedLabel == clickedLabel) {
-            selectedLabel = null;
-            clearFoundItemsText();
-        } else {
-            clickedLabel.setStyle(SELECTED_STYLE);
-            selectedLabel = clickedLabel;
-            controller.handleItemSelection(clickedLabel.getText());
+
+        @Override
+        protected void updateItem(String item, boolean empty) {
+            super.updateItem(item, empty);
+            setText(empty ? null : item);
+            updateStyle();
+
+            // Close to the end of what is loaded, ask for the next page of hits
+            int loaded = resultsList.getItems().size();
+            if (!empty && loaded > loadMoreRequestedAt && getIndex() >= loaded - LOAD_MORE_THRESHOLD) {
+                loadMoreRequestedAt = loaded;
+                Platform.runLater(controller::handleLoadMoreResults);
+            }
+        }
+
+        @Override
+        public void updateSelected(boolean selected) {
+            super.updateSelected(selected);
+            updateStyle();
+        }
+
+        private void updateStyle() {
+            setStyle(isEmpty() ? null : isSelected() ? SELECTED_STYLE : NORMAL_STYLE);
         }
     }
 
@@ -398,6 +514,52 @@ public class MainView {
     }
 
     public static String getFolderIconBase64() {
-        return FOLDER_ICON_BASE64;
+        return FolderIcon.BASE64;
+    }
+
+    /**
+     * The folder icon, read from the resources the first time a record with
+     * a folder is shown rather than while the window is being built.
+     */
+    private static final class FolderIcon {
+        static final String BASE64;
+
+        static {
+            String iconBase64;
+            try {
+                System.out.println("Attempting to load folder icon...");
+                InputStream is = FolderIcon.class.getResourceAsStream("/images/folder-icon.png");
+                if (is != null) {
+                    try {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        int nRead;
+                        byte[] data = new byte[1024];
+                        while ((nRead = is.read(data, 0, data.length)) != -1) {
+                            buffer.write(data, 0, nRead);
+                        }
+                        buffer.flush();
+                        iconBase64 = Base64.getEncoder().encodeToString(buffer.toByteArray());
+                        is.close();
+                        System.out.println("Successfully loaded folder icon from resources");
+                    } catch (Exception e) {
+                        System.err.println("Error reading folder icon file: " + e.getMessage());
+                        System.err.println("Stack trace:");
+                        e.printStackTrace();
+                        iconBase64 = DEFAULT_FOLDER_ICON;
+                    }
+                } else {
+                    System.err.println("Folder icon not found in resources at: /images/folder-icon.png");
+                    System.err.println("Expected path: src/main/resources/images/folder-icon.png");
+                    System.err.println("Using default folder icon instead");
+                    iconBase64 = DEFAULT_FOLDER_ICON;
+                }
+            } catch (Exception e) {
+                System.err.println("Error loading folder icon: " + e.getMessage());
+                System.err.println("Stack trace:");
+                e.printStackTrace();
+                iconBase64 = DEFAULT_FOLDER_ICON;
+            }
+            BASE64 = iconBase64;
+        }
     }
 } 
\ No newline at end of file
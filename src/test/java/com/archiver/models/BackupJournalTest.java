@@ -0,0 +1,80 @@
+package com.archiver.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BackupJournalTest {
+    @TempDir
+    Path folder;
+
+    // Every version the records file went through, by sequence number
+    private final Map<Long, String> versions = new TreeMap<>();
+
+    @Test
+    void restoresEveryVersionAcrossAnExternalRewrite() throws IOException {
+        Path records = folder.resolve("records.csv");
+        Files.writeString(records, "first,a\n", StandardCharsets.UTF_8);
+        BackupJournal journal = new BackupJournal(records);
+
+        long sequence = add(journal, records, "second,b\n");
+        versions.put(sequence - 1, "first,a\n");
+        add(journal, records, "third,c\n");
+
+        // Edited outside the application: the next add must keep that state as a version of its own
+        String rewritten = "rewritten,x\n";
+        Files.writeString(records, rewritten, StandardCharsets.UTF_8);
+        sequence = add(journal, records, "fourth,d\n");
+        versions.put(sequence - 1, rewritten);
+        add(journal, records, "fifth,e\n");
+
+        // Large enough for the next add to take a checkpoint
+        add(journal, records, "big," + "y".repeat(1 << 20) + "\n");
+        add(journal, records, "sixth,f\n");
+
+        assertRestores(journal);
+        // A new journal only has what is on disk to go by
+        assertRestores(new BackupJournal(records));
+    }
+
+    @Test
+    void refusesUnknownVersions() throws IOException {
+        Path records = folder.resolve("records.csv");
+        Files.writeString(records, "first,a\n", StandardCharsets.UTF_8);
+        BackupJournal journal = new BackupJournal(records);
+        add(journal, records, "second,b\n");
+
+        Path target = folder.resolve("restored.csv");
+        assertThrows(IllegalArgumentException.class, () -> journal.restore(2, target));
+        assertThrows(IllegalArgumentException.class, () -> journal.restore(-1, target));
+    }
+
+    private long add(BackupJournal journal, Path records, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        long sequence = journal.recordAppend(bytes);
+        Files.write(records, bytes, StandardOpenOption.APPEND);
+        versions.put(sequence, Files.readString(records, StandardCharsets.UTF_8));
+        return sequence;
+    }
+
+    private void assertRestores(BackupJournal journal) throws IOException {
+        assertEquals(versions.size() - 1, journal.getLatestSequence());
+        for (Map.Entry<Long, String> version : versions.entrySet()) {
+            Path target = folder.resolve("restored_" + version.getKey() + ".csv");
+            journal.restore(version.getKey(), target);
+            assertEquals(version.getValue(), Files.readString(target, StandardCharsets.UTF_8),
+                "version " + version.getKey());
+            Files.delete(target);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.archiver.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class FieldCatalogTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void resolvesRelativePathsInTheRecordsFolder() throws IOException {
+        Files.createDirectories(folder.resolve("docs"));
+        Files.writeString(folder.resolve("docs/notes.txt"), "notes", StandardCharsets.UTF_8);
+        FieldCatalog catalog = follow(open(), "first;docs/notes.txt;and/or;report.pdf;plain text;\n");
+        catalog.flush();
+
+        assertEquals(FieldCatalog.Kind.PATH, catalog.kindOf("docs/notes.txt"));
+        assertEquals(folder.resolve("docs/notes.txt"), catalog.resolve("docs/notes.txt"));
+        assertEquals(5, catalog.getFileInfo("docs/notes.txt").getSize());
+        // Shaped like paths, but not there
+        assertEquals(FieldCatalog.Kind.TEXT, catalog.kindOf("and/or"));
+        assertEquals(FieldCatalog.Kind.TEXT, catalog.kindOf("report.pdf"));
+        assertEquals(FieldCatalog.Kind.TEXT, catalog.kindOf("plain text"));
+        assertNull(catalog.getFileInfo("plain text"));
+    }
+
+    @Test
+    void loadsWhatWasCheckedInsteadOfCheckingItAgain() throws IOException {
+        Path file = folder.resolve("attachment.txt");
+        Files.writeString(file, "12345", StandardCharsets.UTF_8);
+        String records = "first;" + file + ";\n";
+        follow(open(), records).flush();
+
+        // Only showing the record checks it again, a restart does not
+        Files.writeString(file, "1234567890", StandardCharsets.UTF_8);
+        FieldCatalog reopened = follow(open(), records);
+        reopened.flush();
+        assertEquals(5, reopened.getFileInfo(file.toString()).getSize());
+        assertTrue(Files.isRegularFile(folder.resolve("field-catalog")));
+    }
+
+    private FieldCatalog open() {
+        return new FieldCatalog(folder, folder.resolve("field-catalog"), 600);
+    }
+
+    private FieldCatalog follow(FieldCatalog catalog, String records) throws IOException {
+        Path recordsFile = folder.resolve("records.csv");
+        Files.writeString(recordsFile, records, StandardCharsets.UTF_8);
+        RecordStore store = new RecordStore(recordsFile);
+        store.load();
+        catalog.follow(store);
+        return catalog;
+    }
+}
@@ -0,0 +1,63 @@
+package com.archiver.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ParallelRecordScannerTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void scansCrLfFilesLikeSplittingTheirLines() throws IOException {
+        // Past the smallest scan chunk, with a "\r\n" split across the first chunk end
+        int chunkSize = 1 << 20;
+        StringBuilder text = new StringBuilder();
+        List<String> lines = new ArrayList<>();
+        int bytes = 0;
+        int n = 0;
+        while (bytes < 3 * chunkSize) {
+            String line = n % 3 == 0 ? "Banco Itaú SA;conta " + n : n % 3 == 1 ? "mississippi;" + n : "aababab " + n;
+            int length = line.getBytes(StandardCharsets.UTF_8).length;
+            if (bytes < chunkSize && bytes + length + 2 > chunkSize) {
+                // Padded so the '\r' is the last byte of the first chunk
+                line = "x".repeat(chunkSize - bytes - 1);
+                length = line.length();
+            }
+            lines.add(line);
+            text.append(line).append("\r\n");
+            bytes += length + 2;
+            n++;
+        }
+        lines.add("acao promocao, no line end");
+        text.append("acao promocao, no line end");
+        Path records = folder.resolve("records.csv");
+        Files.write(records, text.toString().getBytes(StandardCharsets.UTF_8));
+
+        for (String term : new String[] {"banco itau", "ississ", "abab 1", "x", "promo", "0"}) {
+            QueryMatcher matcher = QueryMatcher.compile(term);
+            List<String> expected = new ArrayList<>();
+            for (String line : lines) {
+                if (QueryMatcherTest.foldAndContains(term, line)) {
+                    expected.add(line);
+                }
+            }
+            List<String> found = new ArrayList<>();
+            long scanned = ParallelRecordScanner.scan(records, matcher, found::add, () -> false);
+            assertEquals(lines.size(), scanned, term);
+            assertEquals(expected, found, term);
+            for (String line : found) {
+                assertFalse(line.contains("\r") || line.contains("\n"), term);
+            }
+        }
+    }
+}
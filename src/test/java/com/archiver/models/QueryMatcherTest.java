@@ -0,0 +1,92 @@
+package com.archiver.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.archiver.utils.TextFolding;
+
+class QueryMatcherTest {
+    private static final String[] TERMS = {
+        "banco",
+        "BANCO itaú",
+        "itau  conta",
+        "Ação",
+        "cao promo",
+        // Overlapping words, found through the failure links
+        "aab",
+        "abab",
+        "ab ba",
+        "she he hers",
+        "ississ",
+        "x",
+        "straße",
+        "istanbul",
+        "σίσυφος",
+        "",
+    };
+
+    private static final String[] LINES = {
+        "Banco Itaú SA;conta corrente;",
+        "BANCO ITAU",
+        "banc o",
+        "Ação;Promoção;",
+        "acao promocao",
+        "aaab",
+        "aababab",
+        "abba",
+        "ushers",
+        "mississippi",
+        "x;y",
+        "STRASSE;Straße",
+        "İstanbul",
+        "ΣΊΣΥΦΟΣ",
+        "",
+    };
+
+    @Test
+    void matchesLikeFoldingAndContains() {
+        for (String term : TERMS) {
+            QueryMatcher matcher = QueryMatcher.compile(term);
+            for (String line : LINES) {
+                boolean expected = foldAndContains(term, line);
+                String description = "\"" + term + "\" in \"" + line + "\"";
+                assertEquals(expected, matcher.matchesFolding(line), description);
+                byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+                assertEquals(expected, matcher.matchesFolding(ByteBuffer.wrap(bytes), 0, bytes.length), description);
+                // The store matches its folded search text as bytes, without folding again
+                byte[] folded = TextFolding.fold(line).getBytes(StandardCharsets.UTF_8);
+                assertEquals(expected, matcher.matches(ByteBuffer.wrap(folded), 0, folded.length), description);
+            }
+        }
+    }
+
+    @Test
+    void referenceAgreesWithKnownCases() {
+        // Guards the reference itself, the comparison above would not notice it going wrong
+        assertTrue(foldAndContains("BANCO itaú", "Banco Itaú SA;conta corrente;"));
+        assertTrue(foldAndContains("aab", "aaab"));
+        assertTrue(foldAndContains("ississ", "mississippi"));
+        assertFalse(foldAndContains("ab ba", "aaab"));
+        assertFalse(foldAndContains("banco", "banc o"));
+    }
+
+    /**
+     * What searches meant before the matcher: the folded line contains every
+     * folded word of the term, words being split on spaces.
+     */
+    static boolean foldAndContains(String term, String line) {
+        String foldedLine = TextFolding.fold(line);
+        for (String word : TextFolding.fold(term).split(" ")) {
+            if (!word.trim().isEmpty() && !foldedLine.contains(word)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,38 @@
+package com.archiver.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RecordIndexTest {
+    @TempDir
+    Path folder;
+
+    @Test
+    void savesTermsOverSixtyFourKilobytes() throws IOException {
+        // A pasted blob with no separator is one term, 3 bytes a char in UTF-8
+        String blob = "ação".repeat(30_000);
+        Path records = folder.resolve("records.csv");
+        Files.writeString(records, "first;a;\n" + blob + ";b;\nlast;c;\n", StandardCharsets.UTF_8);
+
+        RecordIndex built = RecordIndex.open(load(records), false);
+        assertTrue(Files.isRegularFile(folder.resolve("records.csv.idx")));
+
+        RecordIndex loaded = RecordIndex.open(load(records), false);
+        assertEquals(built.getTermCount(), loaded.getTermCount());
+        assertEquals(3, loaded.getRecordCount());
+    }
+
+    private static RecordStore load(Path records) throws IOException {
+        RecordStore store = new RecordStore(records);
+        store.load();
+        return store;
+    }
+}
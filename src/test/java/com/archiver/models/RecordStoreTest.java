@@ -0,0 +1,87 @@
+package com.archiver.models;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class RecordStoreTest {
+    @TempDir
+    Path folder;
+
+    private int retracted;
+    private int appended;
+
+    @Test
+    void appendsAfterTheOpenLastRecordRetractNothing() throws IOException {
+        Path records = folder.resolve("records.csv");
+        Files.writeString(records, "first;a;", StandardCharsets.UTF_8);
+        RecordStore store = open(records);
+        List<String> expected = new ArrayList<>(List.of("first;a;"));
+
+        // As adds write them: a line separator, then the record, left unterminated
+        for (int i = 0; i < 50; i++) {
+            String record = "record " + i + ";";
+            append(records, (i % 2 == 0 ? "\n" : "\r\n") + record);
+            store.refresh();
+            expected.add(record);
+            assertRecords(expected, store.snapshot());
+        }
+        assertEquals(0, retracted);
+        assertEquals(50, appended);
+    }
+
+    @Test
+    void extendingTheOpenLastRecordReadsItAgain() throws IOException {
+        Path records = folder.resolve("records.csv");
+        Files.writeString(records, "first;a;\nsecond;", StandardCharsets.UTF_8);
+        RecordStore store = open(records);
+
+        append(records, "b;\r\nthird;");
+        store.refresh();
+        assertRecords(List.of("first;a;", "second;b;", "third;"), store.snapshot());
+        assertEquals(1, retracted);
+    }
+
+    private RecordStore open(Path records) throws IOException {
+        RecordStore store = new RecordStore(records);
+        store.load();
+        store.addListener(new RecordStore.Listener() {
+            @Override
+            public void recordsAppended(RecordStore.Snapshot snapshot, int fromId) {
+                appended++;
+            }
+
+            @Override
+            public void recordRetracted(RecordStore.Snapshot previous, int id) {
+                retracted++;
+            }
+
+            @Override
+            public void recordsReloaded(RecordStore.Snapshot snapshot) {
+                throw new AssertionError("appends must not reload the records");
+            }
+        });
+        return store;
+    }
+
+    private static void append(Path records, String text) throws IOException {
+        Files.write(records, text.getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+    }
+
+    private static void assertRecords(List<String> expected, RecordStore.Snapshot snapshot) {
+        List<String> actual = new ArrayList<>();
+        for (int id = 0; id < snapshot.size(); id++) {
+            actual.add(snapshot.getRecord(id));
+        }
+        assertEquals(expected, actual);
+    }
+}